@@ -0,0 +1,411 @@
+package it.unive.secgroup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+public class ApproximateCounter {
+
+    // top-K counting in constant memory, for when only the heaviest words/rules are shipped.
+    // a Count-Min Sketch (conservative update) bounds the count of every key from above,
+    // a Space-Saving table of `capacity` entries monitors the heaviest keys. for every monitored key:
+    //   count - error <= real count <= count
+    // and every key whose real count is above threshold() is monitored.
+    // with probability 1 - delta, a sketch estimate exceeds the real count by at most epsilon * total()
+
+    private final int width;
+    private final int depth;
+    private final long[] sketch;
+    private final int capacity;
+    private long total;
+    // upper bound of the count of any key that is not monitored
+    private long missing;
+
+    // monitored keys: entries by index, a linear probing table of (index + 1) and a min-heap by count
+    private final String[] keys;
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    private final int[] heap;
+    private final int[] heapPos;
+    private final int[] table;
+    private final int mask;
+    private int size;
+    private char[] scratch = new char[64];
+    private CompactCounter.KeyFormat keyFormat;
+
+    public static class Estimate {
+        public final String key;
+        public final long count;
+        public final long error;
+
+        Estimate(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    public ApproximateCounter(int capacity, double epsilon, double delta) {
+        if (capacity < 1 || epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1)
+            throw new IllegalArgumentException("invalid bounds: capacity " + capacity + ", epsilon " + epsilon + ", delta " + delta);
+        this.capacity = capacity;
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        this.sketch = new long[width * depth];
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        heapPos = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    public void setKeyFormat(CompactCounter.KeyFormat keyFormat) {
+        // as in CompactCounter: CharSequence keys and the reported entries are in external form
+        this.keyFormat = keyFormat;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public long threshold() {
+        // keys counted more than this are all monitored
+        return missing;
+    }
+
+    public long maxSketchError() {
+        // additive error of the sketch estimates, with probability 1 - delta
+        return (long) Math.ceil(Math.E / width * total);
+    }
+
+    public long memoryUsage() {
+        return (long) sketch.length * 8 + (long) capacity * (8 + 4 + 8 + 8 + 4 + 4 + 64) + table.length * 4L;
+    }
+
+    public void add(CharSequence key, long delta) {
+        if (keyFormat != null)
+            key = keyFormat.parse(key);
+        int length = key.length();
+        if (scratch.length < length)
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++)
+            scratch[i] = key.charAt(i);
+        add(scratch, 0, length, delta);
+    }
+
+    public void add(char[] key, int off, int len, long delta) {
+        long h = hash(key, off, len);
+        total += delta;
+        long estimate = updateSketch(h, delta);
+        int e = find(key, off, len, (int) h);
+        if (e >= 0) {
+            counts[e] += delta;
+            siftDown(heapPos[e]);
+            return;
+        }
+        // a new key cannot have been counted more than missing before
+        long count = Math.min(estimate, missing + delta);
+        if (size < capacity) {
+            e = size++;
+            heap[e] = e;
+            heapPos[e] = e;
+        } else {
+            int min = heap[0];
+            if (count <= counts[min]) {
+                missing = Math.max(missing, count);
+                return;
+            }
+            // evicts the lightest key
+            missing = Math.max(missing, counts[min]);
+            remove(min);
+            e = min;
+        }
+        keys[e] = new String(key, off, len);
+        hashes[e] = (int) h;
+        counts[e] = count;
+        errors[e] = count - delta;
+        insert(e);
+        siftUp(heapPos[e]);
+        siftDown(heapPos[e]);
+    }
+
+    public long get(CharSequence key) {
+        // the estimated count: exact bounds for monitored keys, the sketch estimate otherwise
+        if (keyFormat != null)
+            key = keyFormat.parse(key);
+        int length = key.length();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = key.charAt(i);
+        long h = hash(chars, 0, length);
+        int e = find(chars, 0, length, (int) h);
+        return e >= 0 ? counts[e] : Math.min(estimate(h), missing);
+    }
+
+    public void merge(ApproximateCounter other) {
+        // mergeable summaries: sketches are added cell by cell, keys missing on one side
+        // are bounded by that side's threshold, then the heaviest candidates are kept
+        if (other.width != width || other.depth != depth || other.capacity != capacity)
+            throw new IllegalArgumentException("cannot merge counters with different bounds");
+        for (int i = 0; i < sketch.length; i++)
+            sketch[i] += other.sketch[i];
+        total += other.total;
+
+        List<Estimate> candidates = new ArrayList<>(size + other.size);
+        for (int e = 0; e < size; e++) {
+            int o = other.find(keys[e], hashes[e]);
+            long upper = counts[e] + (o >= 0 ? other.counts[o] : other.missing);
+            long lower = counts[e] - errors[e] + (o >= 0 ? other.counts[o] - other.errors[o] : 0);
+            candidates.add(bounded(keys[e], upper, lower));
+        }
+        for (int o = 0; o < other.size; o++) {
+            if (find(other.keys[o], other.hashes[o]) >= 0)
+                continue;
+            long upper = missing + other.counts[o];
+            long lower = other.counts[o] - other.errors[o];
+            candidates.add(bounded(other.keys[o], upper, lower));
+        }
+        Collections.sort(candidates, BY_COUNT);
+
+        long merged = missing + other.missing;
+        Arrays.fill(table, 0);
+        size = 0;
+        for (Estimate candidate : candidates) {
+            if (size == capacity) {
+                merged = Math.max(merged, candidate.count);
+                continue;
+            }
+            int e = size++;
+            keys[e] = candidate.key;
+            hashes[e] = (int) hash(candidate.key);
+            counts[e] = candidate.count;
+            errors[e] = candidate.error;
+            insert(e);
+        }
+        Arrays.fill(keys, size, capacity, null);
+        missing = merged;
+        // candidates are sorted by decreasing count: reversed, they form a valid min-heap
+        for (int i = 0; i < size; i++) {
+            heap[i] = size - 1 - i;
+            heapPos[size - 1 - i] = i;
+        }
+    }
+
+    private Estimate bounded(String key, long upper, long lower) {
+        // the merged sketch is an upper bound too
+        upper = Math.min(upper, estimate(hash(key)));
+        return new Estimate(key, upper, upper - Math.min(lower, upper));
+    }
+
+    public List<Estimate> top() {
+        // monitored keys by decreasing count (ties by key)
+        List<Estimate> top = new ArrayList<>(size);
+        for (int e = 0; e < size; e++)
+            top.add(new Estimate(keys[e], counts[e], errors[e]));
+        Collections.sort(top, BY_COUNT);
+        if (keyFormat != null)
+            for (int i = 0; i < top.size(); i++) {
+                Estimate e = top.get(i);
+                top.set(i, new Estimate(keyFormat.format(e.key.toCharArray(), 0, e.key.length()), e.count, e.error));
+            }
+        return top;
+    }
+
+    public int guaranteedTop() {
+        // the first n keys of top() are certainly the n most frequent ones:
+        // their lower bounds are not below the upper bound of any other key
+        List<Estimate> top = top();
+        long minLower = Long.MAX_VALUE;
+        int guaranteed = 0;
+        for (int i = 0; i < top.size(); i++) {
+            minLower = Math.min(minLower, top.get(i).count - top.get(i).error);
+            long next = i + 1 < top.size() ? Math.max(top.get(i + 1).count, missing) : missing;
+            if (minLower >= next)
+                guaranteed = i + 1;
+        }
+        return guaranteed;
+    }
+
+    public void writeByCount(Writer out) throws IOException {
+        // one key per line, by decreasing count (ties by key)
+        for (Estimate estimate : top()) {
+            out.write(estimate.key);
+            out.write('\n');
+        }
+    }
+
+    public void writeByCount(CountWriter.Output out) throws IOException {
+        // with the cutoffs of out, on the estimated counts
+        for (Estimate estimate : top())
+            if (!out.write(estimate.key, estimate.count))
+                break;
+    }
+
+    public void writeEstimates(Writer out) throws IOException {
+        // count <tab> error <tab> key: the real count is in [count - error, count]
+        for (Estimate estimate : top()) {
+            out.write(Long.toString(estimate.count));
+            out.write('\t');
+            out.write(Long.toString(estimate.error));
+            out.write('\t');
+            out.write(estimate.key);
+            out.write('\n');
+        }
+    }
+
+    public Map<String, Integer> asMap() {
+        // read-only snapshot by decreasing count, with the semantics of the exact counters
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (Estimate estimate : top())
+            map.put(estimate.key, (int) Math.min(estimate.count, Integer.MAX_VALUE));
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static final Comparator<Estimate> BY_COUNT = new Comparator<Estimate>() {
+        @Override
+        public int compare(Estimate a, Estimate b) {
+            int c = Long.compare(b.count, a.count);
+            return c != 0 ? c : a.key.compareTo(b.key);
+        }
+    };
+
+    private long updateSketch(long h, long delta) {
+        // conservative update: raises only the cells below the new estimate
+        long estimate = estimate(h);
+        long updated = estimate + delta;
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < depth; i++) {
+            int cell = i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+            if (sketch[cell] < updated)
+                sketch[cell] = updated;
+        }
+        return updated;
+    }
+
+    private long estimate(long h) {
+        int h1 = (int) h, h2 = (int) (h >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++)
+            estimate = Math.min(estimate, sketch[i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width]);
+        return estimate;
+    }
+
+    private int find(char[] key, int off, int len, int tableHash) {
+        int slot = tableHash & mask;
+        int t;
+        while ((t = table[slot]) != 0) {
+            String k = keys[t - 1];
+            if (hashes[t - 1] == tableHash && k.length() == len && matches(k, key, off, len))
+                return t - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int find(String key, int tableHash) {
+        int slot = tableHash & mask;
+        int t;
+        while ((t = table[slot]) != 0) {
+            if (hashes[t - 1] == tableHash && keys[t - 1].equals(key))
+                return t - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean matches(String k, char[] key, int off, int len) {
+        for (int i = 0; i < len; i++)
+            if (k.charAt(i) != key[off + i])
+                return false;
+        return true;
+    }
+
+    private void insert(int e) {
+        int slot = hashes[e] & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = e + 1;
+    }
+
+    private void remove(int e) {
+        // linear probing deletion: the following entries of the cluster are shifted back
+        int slot = hashes[e] & mask;
+        while (table[slot] != e + 1)
+            slot = (slot + 1) & mask;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            int t = table[next];
+            if (t == 0)
+                break;
+            int ideal = hashes[t - 1] & mask;
+            if (((next - ideal) & mask) >= ((next - slot) & mask)) {
+                table[slot] = t;
+                slot = next;
+            }
+        }
+        table[slot] = 0;
+    }
+
+    private void siftUp(int pos) {
+        int e = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[e])
+                break;
+            heap[pos] = heap[parent];
+            heapPos[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = e;
+        heapPos[e] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int e = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]])
+                child++;
+            if (counts[e] <= counts[heap[child]])
+                break;
+            heap[pos] = heap[child];
+            heapPos[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = e;
+        heapPos[e] = pos;
+    }
+
+    private static long hash(String key) {
+        char[] chars = key.toCharArray();
+        return hash(chars, 0, chars.length);
+    }
+
+    private static long hash(char[] key, int off, int len) {
+        long h = len;
+        for (int i = off; i < off + len; i++)
+            h = (h ^ key[i]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
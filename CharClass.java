@@ -0,0 +1,68 @@
+package it.unive.secgroup;
+
+public class CharClass {
+
+    // the class of every password char, looked up in a table of the 65536 chars instead of a chain of
+    // range checks. ASCII is the historical classification: letters and digits are ascii only, any other
+    // char is a symbol (so accented Latin-1 letters of rockyou, Cyrillic or Greek are symbols).
+    // UNICODE also takes the letters (and combining marks) of every script as letters. they have no case
+    // for the rules: hashcat case functions (l u c t T) only change ascii letters, so a word keeps its
+    // non-ascii letters as they are in the pwd. digits stay ascii: dates and numeric rules need 0-9.
+    // surrogates are symbols (supplementary chars in passwords are mostly emoji)
+
+    public static final byte LOWER = 1;
+    public static final byte UPPER = 2;
+    // a letter out of ascii: alphabetic, without case for the rules
+    public static final byte LETTER = 4;
+    public static final byte DIGIT = 8;
+    public static final byte SYMBOL = 16;
+    private static final int ALPHA = LOWER | UPPER | LETTER;
+
+    public static final CharClass ASCII = new CharClass(false);
+    public static final CharClass UNICODE = new CharClass(true);
+
+    private final byte[] table = new byte[Character.MAX_VALUE + 1];
+    private final boolean unicode;
+
+    private CharClass(boolean unicode) {
+        this.unicode = unicode;
+        for (int c = 0; c <= Character.MAX_VALUE; c++)
+            table[c] = classify((char) c, unicode);
+    }
+
+    private static byte classify(char c, boolean unicode) {
+        if (c >= 'a' && c <= 'z') return LOWER;
+        if (c >= 'A' && c <= 'Z') return UPPER;
+        if (c >= '0' && c <= '9') return DIGIT;
+        if (!unicode || c < 0x80 || Character.isSurrogate(c)) return SYMBOL;
+        int type = Character.getType(c);
+        if (Character.isLetter(c) || type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK)
+            return LETTER;
+        return SYMBOL;
+    }
+
+    public byte of(char c) {
+        return table[c];
+    }
+
+    public boolean isAlpha(char c) {
+        return (table[c] & ALPHA) != 0;
+    }
+
+    public boolean isDigit(char c) {
+        return table[c] == DIGIT;
+    }
+
+    public boolean isSymbol(char c) {
+        return table[c] == SYMBOL;
+    }
+
+    public boolean isUnicode() {
+        return unicode;
+    }
+
+    @Override
+    public String toString() {
+        return unicode ? "UNICODE" : "ASCII";
+    }
+}
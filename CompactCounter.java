@@ -0,0 +1,706 @@
+package it.unive.secgroup;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class CompactCounter {
+
+    // a String -> count map for tens of millions of keys.
+    // keys live in a slab of byte pages, one record per key:
+    //   [count: 4 bytes][header: varint (chars << 1 | wide)][chars: 1 byte each (latin-1) or 2 bytes each (wide)]
+    // records are 4-byte aligned, so that an int can address 8GB of slab.
+    // the open addressing table (linear probing) only holds the record addresses.
+    // counts that do not fit in an int are moved to a (tiny) overflow map.
+
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int UNITS_PER_PAGE = PAGE_SIZE >> 2;
+    private static final int OVERFLOW = -1;
+    private static final float LOAD_FACTOR = 0.7f;
+    // runs of equal count longer than this are sorted by key in parallel
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    private int[] table;
+    private final int initialCapacity;
+    private int mask;
+    private int size;
+    private byte[][] pages = new byte[16][];
+    private int[] pageUsed = new int[16];
+    private int pageCount;
+    private final Map<Integer, Long> overflow = new HashMap<>();
+    private char[] scratch = new char[64];
+    private KeyFormat keyFormat;
+
+    public interface KeyFormat {
+        // the external form of keys counted in an internal encoding (e.g. rules as op-codes):
+        // the CharSequence methods and the views take external keys, the char[] ones internal keys
+        String format(char[] key, int off, int length);
+
+        String parse(CharSequence text);
+    }
+
+    public CompactCounter() {
+        this(1024);
+    }
+
+    public CompactCounter(int expectedKeys) {
+        this(capacity(expectedKeys), 0);
+    }
+
+    private static int capacity(int expectedKeys) {
+        return Integer.highestOneBit(Math.max(16, (int) (expectedKeys / LOAD_FACTOR)) - 1) << 1;
+    }
+
+    static long footprint(int expectedKeys) {
+        // memoryUsage of a counter sized for expectedKeys as soon as it holds a key (table and first page)
+        return (long) capacity(expectedKeys) * 4 + PAGE_SIZE;
+    }
+
+    private CompactCounter(int initialCapacity, int tableLength) {
+        table = new int[Math.max(initialCapacity, tableLength)];
+        mask = table.length - 1;
+        this.initialCapacity = initialCapacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void setKeyFormat(KeyFormat keyFormat) {
+        this.keyFormat = keyFormat;
+    }
+
+    public KeyFormat getKeyFormat() {
+        return keyFormat;
+    }
+
+    public long memoryUsage() {
+        // bytes held by the table and the slab
+        return (long) table.length * 4 + (long) pageCount * PAGE_SIZE + overflow.size() * 64L;
+    }
+
+    public long add(CharSequence key, long delta) {
+        if (keyFormat != null)
+            key = keyFormat.parse(key);
+        int length = key.length();
+        if (scratch.length < length)
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        if (key instanceof String)
+            ((String) key).getChars(0, length, scratch, 0);
+        else if (key instanceof StringBuilder)
+            ((StringBuilder) key).getChars(0, length, scratch, 0);
+        else
+            for (int i = 0; i < length; i++)
+                scratch[i] = key.charAt(i);
+        return add(scratch, 0, length, delta);
+    }
+
+    public long add(char[] key, int off, int len, long delta) {
+        // adds delta to the count of key[off, off + len), returns the new count.
+        // the key is copied into the slab only when it is new
+        int hash = hash(key, off, len);
+        int slot = hash & mask;
+        int address;
+        while ((address = table[slot]) != 0) {
+            if (matches(address, key, off, len))
+                return increment(address, delta);
+            slot = (slot + 1) & mask;
+        }
+        address = append(key, off, len);
+        table[slot] = address;
+        size++;
+        setCount(address, 0);
+        long count = increment(address, delta);
+        if (size > table.length * LOAD_FACTOR)
+            resize();
+        return count;
+    }
+
+    public long get(CharSequence key) {
+        if (keyFormat != null)
+            key = keyFormat.parse(key);
+        int length = key.length();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = key.charAt(i);
+        return get(chars, 0, length);
+    }
+
+    public long get(char[] key, int off, int len) {
+        int slot = hash(key, off, len) & mask;
+        int address;
+        while ((address = table[slot]) != 0) {
+            if (matches(address, key, off, len))
+                return count(address);
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public void addAll(CompactCounter other) {
+        char[] chars = new char[64];
+        for (Cursor cursor = other.cursor(); cursor.next(); ) {
+            if (chars.length < cursor.length())
+                chars = new char[Math.max(cursor.length(), chars.length * 2)];
+            cursor.chars(chars);
+            add(chars, 0, cursor.length(), cursor.count());
+        }
+    }
+
+    public void clear() {
+        table = new int[initialCapacity];
+        mask = initialCapacity - 1;
+        size = 0;
+        for (int p = 0; p < pageCount; p++) {
+            pages[p] = null;
+            pageUsed[p] = 0;
+        }
+        pageCount = 0;
+        overflow.clear();
+    }
+
+    private static int hash(char[] key, int off, int len) {
+        int h = len;
+        for (int i = off; i < off + len; i++)
+            h = (h ^ key[i]) * 0x9E3779B1;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private void resize() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        mask = table.length - 1;
+        char[] chars = scratch;
+        for (int address : old) {
+            if (address == 0)
+                continue;
+            int length = length(address);
+            if (chars.length < length)
+                chars = scratch = new char[Math.max(length, chars.length * 2)];
+            chars(address, chars);
+            int slot = hash(chars, 0, length) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = address;
+        }
+    }
+
+    // record access. an address is the record position in 4-byte units, + 1 (0 marks empty slots)
+
+    private int append(char[] key, int off, int len) {
+        boolean wide = false;
+        for (int i = off; i < off + len && !wide; i++)
+            wide = key[i] > 0xFF;
+        int header = len << 1 | (wide ? 1 : 0);
+        int recordSize = 4 + varintSize(header) + (wide ? len * 2 : len);
+        if (recordSize > PAGE_SIZE)
+            throw new IllegalArgumentException("key too long: " + len + " chars");
+        if (pageCount == 0 || pageUsed[pageCount - 1] + recordSize > PAGE_SIZE)
+            newPage();
+        int p = pageCount - 1;
+        byte[] page = pages[p];
+        int start = pageUsed[p];
+        int pos = start + 4;
+        for (int h = header; ; h >>>= 7) {
+            if ((h & ~0x7F) == 0) {
+                page[pos++] = (byte) h;
+                break;
+            }
+            page[pos++] = (byte) (h & 0x7F | 0x80);
+        }
+        if (wide) {
+            for (int i = off; i < off + len; i++) {
+                page[pos++] = (byte) (key[i] >>> 8);
+                page[pos++] = (byte) key[i];
+            }
+        } else {
+            for (int i = off; i < off + len; i++)
+                page[pos++] = (byte) key[i];
+        }
+        pageUsed[p] = (pos + 3) & ~3;
+        return p * UNITS_PER_PAGE + (start >> 2) + 1;
+    }
+
+    private void newPage() {
+        if ((long) (pageCount + 1) * UNITS_PER_PAGE >= Integer.MAX_VALUE)
+            throw new IllegalStateException("counter slab is full (" + pageCount + " pages)");
+        if (pageCount == pages.length) {
+            pages = Arrays.copyOf(pages, pageCount * 2);
+            pageUsed = Arrays.copyOf(pageUsed, pageCount * 2);
+        }
+        pages[pageCount++] = new byte[PAGE_SIZE];
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private byte[] page(int address) {
+        return pages[(address - 1) / UNITS_PER_PAGE];
+    }
+
+    private static int offset(int address) {
+        return ((address - 1) % UNITS_PER_PAGE) << 2;
+    }
+
+    private int header(byte[] page, int pos) {
+        int header = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[pos++];
+            header |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return header;
+        }
+    }
+
+    private int length(int address) {
+        return header(page(address), offset(address) + 4) >>> 1;
+    }
+
+    private boolean matches(int address, char[] key, int off, int len) {
+        byte[] page = page(address);
+        int pos = offset(address) + 4;
+        int header = header(page, pos);
+        if (header >>> 1 != len)
+            return false;
+        pos += varintSize(header);
+        if ((header & 1) != 0) {
+            for (int i = off; i < off + len; i++, pos += 2)
+                if (key[i] != (char) ((page[pos] & 0xFF) << 8 | page[pos + 1] & 0xFF))
+                    return false;
+        } else {
+            for (int i = off; i < off + len; i++, pos++)
+                if (key[i] != (char) (page[pos] & 0xFF))
+                    return false;
+        }
+        return true;
+    }
+
+    private void chars(int address, char[] chars) {
+        byte[] page = page(address);
+        int pos = offset(address) + 4;
+        int header = header(page, pos);
+        int len = header >>> 1;
+        pos += varintSize(header);
+        if ((header & 1) != 0) {
+            for (int i = 0; i < len; i++, pos += 2)
+                chars[i] = (char) ((page[pos] & 0xFF) << 8 | page[pos + 1] & 0xFF);
+        } else {
+            for (int i = 0; i < len; i++, pos++)
+                chars[i] = (char) (page[pos] & 0xFF);
+        }
+    }
+
+    String key(int address) {
+        // in external form
+        char[] chars = new char[length(address)];
+        chars(address, chars);
+        return keyFormat != null ? keyFormat.format(chars, 0, chars.length) : new String(chars);
+    }
+
+    private int rawCount(int address) {
+        byte[] page = page(address);
+        int pos = offset(address);
+        return (page[pos] & 0xFF) << 24 | (page[pos + 1] & 0xFF) << 16 | (page[pos + 2] & 0xFF) << 8 | page[pos + 3] & 0xFF;
+    }
+
+    private void setCount(int address, int count) {
+        byte[] page = page(address);
+        int pos = offset(address);
+        page[pos] = (byte) (count >>> 24);
+        page[pos + 1] = (byte) (count >>> 16);
+        page[pos + 2] = (byte) (count >>> 8);
+        page[pos + 3] = (byte) count;
+    }
+
+    private long count(int address) {
+        int count = rawCount(address);
+        return count == OVERFLOW ? overflow.get(address) : count;
+    }
+
+    private long increment(int address, long delta) {
+        long count = count(address) + delta;
+        if (count < Integer.MAX_VALUE) {
+            if (rawCount(address) == OVERFLOW)
+                overflow.remove(address);
+            setCount(address, (int) count);
+        } else {
+            setCount(address, OVERFLOW);
+            overflow.put(address, count);
+        }
+        return count;
+    }
+
+    // persistence (see ResumableRun): pages and table are dumped as they are,
+    // so that loading is a bulk copy instead of re-hashing every key
+
+    void save(DataOutputStream out) throws IOException {
+        out.writeInt(initialCapacity);
+        out.writeInt(table.length);
+        out.writeInt(size);
+        out.writeInt(pageCount);
+        for (int p = 0; p < pageCount; p++) {
+            out.writeInt(pageUsed[p]);
+            out.write(pages[p], 0, pageUsed[p]);
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+        for (int i = 0; i < table.length; ) {
+            int n = Math.min(chunk.capacity() >> 2, table.length - i);
+            chunk.clear();
+            chunk.asIntBuffer().put(table, i, n);
+            out.write(chunk.array(), 0, n << 2);
+            i += n;
+        }
+        out.writeInt(overflow.size());
+        for (Map.Entry<Integer, Long> entry : overflow.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    static CompactCounter load(ResumableRun.MappedInput in) throws IOException {
+        int initialCapacity = in.readInt();
+        int tableLength = in.readInt();
+        if (Integer.bitCount(initialCapacity) != 1 || Integer.bitCount(tableLength) != 1)
+            throw new IOException("corrupted counter: table of " + tableLength + " slots");
+        CompactCounter counter = new CompactCounter(initialCapacity, tableLength);
+        counter.size = in.readInt();
+        int pageCount = in.readInt();
+        counter.pages = new byte[Math.max(16, pageCount)][];
+        counter.pageUsed = new int[counter.pages.length];
+        for (int p = 0; p < pageCount; p++) {
+            int used = in.readInt();
+            if (used < 0 || used > PAGE_SIZE)
+                throw new IOException("corrupted counter: page of " + used + " bytes");
+            counter.pages[p] = new byte[PAGE_SIZE];
+            counter.pageUsed[p] = used;
+            in.readBytes(counter.pages[p], 0, used);
+        }
+        counter.pageCount = pageCount;
+        in.readInts(counter.table);
+        int overflows = in.readInt();
+        for (int i = 0; i < overflows; i++)
+            counter.overflow.put(in.readInt(), in.readLong());
+        return counter;
+    }
+
+    // iteration
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public class Cursor {
+        // walks the records in insertion order, without creating Strings
+        private int page = 0;
+        private int pos = -1;
+        private int next = 0;
+        private int address;
+
+        public boolean next() {
+            while (page < pageCount && next >= pageUsed[page]) {
+                page++;
+                next = 0;
+            }
+            if (page >= pageCount)
+                return false;
+            pos = next;
+            address = page * UNITS_PER_PAGE + (pos >> 2) + 1;
+            int header = header(pages[page], pos + 4);
+            int end = pos + 4 + varintSize(header) + ((header & 1) != 0 ? (header >>> 1) * 2 : header >>> 1);
+            next = (end + 3) & ~3;
+            return true;
+        }
+
+        public int length() {
+            return CompactCounter.this.length(address);
+        }
+
+        public void chars(char[] chars) {
+            CompactCounter.this.chars(address, chars);
+        }
+
+        public String key() {
+            return CompactCounter.this.key(address);
+        }
+
+        public long count() {
+            return CompactCounter.this.count(address);
+        }
+    }
+
+    int[] addressesByKey() {
+        // record addresses ordered by key (as String.compareTo), sorted in place without boxing
+        int[] addresses = new int[size];
+        int n = 0;
+        for (Cursor cursor = cursor(); cursor.next(); )
+            addresses[n++] = cursor.address;
+        sortByKey(addresses, 0, n);
+        return addresses;
+    }
+
+    int[] addressesByCount() {
+        // record addresses by decreasing count, ties by key
+        return addressesByCount(1, Integer.MAX_VALUE);
+    }
+
+    int[] addressesByCount(long minCount, long limit) {
+        // the first limit record addresses with count >= minCount, by decreasing count, ties by key.
+        // (count, position) pairs are packed in a long[] and sorted in parallel, then only the runs
+        // of equal count that make it into the output are sorted by key
+        int[] candidates = new int[size];
+        long[] packed = new long[size];
+        int n = 0;
+        for (Cursor cursor = cursor(); cursor.next(); ) {
+            long count = cursor.count();
+            if (count < minCount)
+                continue;
+            candidates[n] = cursor.address;
+            packed[n] = (Integer.MAX_VALUE - Math.min(count, Integer.MAX_VALUE)) << 32 | n;
+            n++;
+        }
+        Arrays.parallelSort(packed, 0, n);
+        int[] addresses = new int[n];
+        for (int i = 0; i < n; i++)
+            addresses[i] = candidates[(int) packed[i]];
+        candidates = null;
+        int end = (int) Math.min(n, limit);
+        for (int from = 0; from < end; ) {
+            long count = packed[from] >>> 32;
+            int to = from + 1;
+            while (to < n && packed[to] >>> 32 == count)
+                to++;
+            if (to - from >= PARALLEL_SORT_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1)
+                ForkJoinPool.commonPool().invoke(new KeySort(addresses, new int[n], from, to));
+            else
+                sortByKey(addresses, from, to);
+            if (count == 0 && !overflow.isEmpty()) {
+                // counts over Integer.MAX_VALUE share the first packed value: insertion sort them by real count
+                for (int i = from + 1; i < to; i++)
+                    for (int j = i; j > from && count(addresses[j]) > count(addresses[j - 1]); j--)
+                        swap(addresses, j, j - 1);
+            }
+            from = to;
+        }
+        return end == n ? addresses : Arrays.copyOf(addresses, end);
+    }
+
+    private class KeySort extends RecursiveAction {
+        // merge sort by key of a[from, to): the halves are sorted in parallel down to PARALLEL_SORT_THRESHOLD
+        private static final long serialVersionUID = 1L;
+        private final int[] a, buffer;
+        private final int from, to;
+
+        KeySort(int[] a, int[] buffer, int from, int to) {
+            this.a = a;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_SORT_THRESHOLD) {
+                sortByKey(a, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new KeySort(a, buffer, from, mid), new KeySort(a, buffer, mid, to));
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to)
+                buffer[k++] = compareKeys(a[j], a[i]) < 0 ? a[j++] : a[i++];
+            while (i < mid) buffer[k++] = a[i++];
+            while (j < to) buffer[k++] = a[j++];
+            System.arraycopy(buffer, from, a, from, to - from);
+        }
+    }
+
+    private void sortByKey(int[] a, int from, int to) {
+        // quicksort (median of three), insertion sort on short ranges
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            if (compareKeys(a[mid], a[from]) < 0) swap(a, mid, from);
+            if (compareKeys(a[to - 1], a[from]) < 0) swap(a, to - 1, from);
+            if (compareKeys(a[to - 1], a[mid]) < 0) swap(a, to - 1, mid);
+            int pivot = a[mid];
+            int i = from, j = to - 1;
+            while (i <= j) {
+                while (compareKeys(a[i], pivot) < 0) i++;
+                while (compareKeys(a[j], pivot) > 0) j--;
+                if (i <= j) swap(a, i++, j--);
+            }
+            // recurse on the smaller half, loop on the bigger one
+            if (j + 1 - from < to - i) {
+                sortByKey(a, from, j + 1);
+                from = i;
+            } else {
+                sortByKey(a, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++)
+            for (int j = i; j > from && compareKeys(a[j], a[j - 1]) < 0; j--)
+                swap(a, j, j - 1);
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i]; a[i] = a[j]; a[j] = t;
+    }
+
+    private int compareKeys(int a, int b) {
+        if (a == b)
+            return 0;
+        byte[] pageA = page(a), pageB = page(b);
+        int posA = offset(a) + 4, posB = offset(b) + 4;
+        int headerA = header(pageA, posA), headerB = header(pageB, posB);
+        posA += varintSize(headerA);
+        posB += varintSize(headerB);
+        int lenA = headerA >>> 1, lenB = headerB >>> 1;
+        boolean wideA = (headerA & 1) != 0, wideB = (headerB & 1) != 0;
+        for (int i = 0; i < lenA && i < lenB; i++) {
+            char ca = wideA ? (char) ((pageA[posA + 2 * i] & 0xFF) << 8 | pageA[posA + 2 * i + 1] & 0xFF) : (char) (pageA[posA + i] & 0xFF);
+            char cb = wideB ? (char) ((pageB[posB + 2 * i] & 0xFF) << 8 | pageB[posB + 2 * i + 1] & 0xFF) : (char) (pageB[posB + i] & 0xFF);
+            if (ca != cb)
+                return ca - cb;
+        }
+        return lenA - lenB;
+    }
+
+    public void writeByCount(Writer out) throws IOException {
+        // one key per line, by decreasing count (ties by key)
+        char[] chars = new char[64];
+        for (int address : addressesByCount()) {
+            int length = length(address);
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            chars(address, chars);
+            if (keyFormat != null)
+                out.write(keyFormat.format(chars, 0, length));
+            else
+                out.write(chars, 0, length);
+            out.write('\n');
+        }
+    }
+
+    public void writeByCount(CountWriter.Output out) throws IOException {
+        // by decreasing count, with the cutoffs of out: the keys below its min count are not even sorted
+        char[] chars = new char[64];
+        for (int address : addressesByCount(out.getMinCount(), out.getLimit())) {
+            int length = length(address);
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            chars(address, chars);
+            if (keyFormat != null)
+                out.write(keyFormat.format(chars, 0, length), count(address));
+            else
+                out.write(chars, 0, length, count(address));
+        }
+    }
+
+    void writeRun(DataOutputStream out) throws IOException {
+        // all the entries by key, in the run format of SpillingCounter
+        char[] chars = new char[64];
+        for (int address : addressesByKey()) {
+            int length = length(address);
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            chars(address, chars);
+            SpillingCounter.writeEntry(out, chars, length, count(address));
+        }
+    }
+
+    void writeRunByCount(DataOutputStream out, long minCount, long limit) throws IOException {
+        // the entries by decreasing count (ties by key) in the run format of SpillingCounter, with the
+        // cutoffs of a CountWriter
+        char[] chars = new char[64];
+        for (int address : addressesByCount(minCount, limit)) {
+            int length = length(address);
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            chars(address, chars);
+            SpillingCounter.writeEntry(out, chars, length, count(address));
+        }
+    }
+
+    public List<Map.Entry<String, Long>> sortedByCount() {
+        // every entry by decreasing count, ties by key (the order of writeByCount)
+        int[] addresses = addressesByCount(Long.MIN_VALUE, Integer.MAX_VALUE);
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(addresses.length);
+        for (int address : addresses)
+            sorted.add(new AbstractMap.SimpleImmutableEntry<>(key(address), count(address)));
+        return sorted;
+    }
+
+    public Map<String, Integer> asMap() {
+        // read-only view with the semantics of the former HashMap<String, Integer> counters
+        // (counts over Integer.MAX_VALUE are capped, get(CharSequence) gives the exact ones)
+        return new AbstractMap<String, Integer>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof CharSequence && CompactCounter.this.get((CharSequence) key) > 0;
+            }
+
+            @Override
+            public Integer get(Object key) {
+                if (!(key instanceof CharSequence))
+                    return null;
+                long count = CompactCounter.this.get((CharSequence) key);
+                return count == 0 ? null : (int) Math.min(count, Integer.MAX_VALUE);
+            }
+
+            @Override
+            public Set<Entry<String, Integer>> entrySet() {
+                return new AbstractSet<Entry<String, Integer>>() {
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+
+                    @Override
+                    public Iterator<Entry<String, Integer>> iterator() {
+                        final Cursor cursor = cursor();
+                        return new Iterator<Entry<String, Integer>>() {
+                            private boolean ready = false;
+                            private boolean hasNext = false;
+
+                            @Override
+                            public boolean hasNext() {
+                                if (!ready) {
+                                    hasNext = cursor.next();
+                                    ready = true;
+                                }
+                                return hasNext;
+                            }
+
+                            @Override
+                            public Entry<String, Integer> next() {
+                                if (!hasNext())
+                                    throw new NoSuchElementException();
+                                ready = false;
+                                return new SimpleImmutableEntry<>(cursor.key(), (int) Math.min(cursor.count(), Integer.MAX_VALUE));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,227 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class CountWriter {
+
+    // writes a counter by decreasing count, one key per line (a hashcat wordlist or rule file).
+    // options: a minimum count (the long tail of keys seen once is usually most of a counter), the
+    // number of lines (top N), the statistics format key:count, and the $HEX[...] encoding hashcat
+    // reads for words that are not printable ascii (their UTF-8 bytes, e.g. $HEX[e282ac] for the
+    // euro sign). with no options the output is the same as writeByCount.
+    // lines are encoded as UTF-8 straight into a large direct buffer, handed to a FileChannel
+
+    private static final int BUFFER_SIZE = 1 << 22;
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    private long minCount = 1;
+    private long top = Long.MAX_VALUE;
+    private boolean counts;
+    private boolean hex;
+
+    public CountWriter setMinCount(long minCount) {
+        // keys seen less than minCount times are left out
+        this.minCount = minCount;
+        return this;
+    }
+
+    public CountWriter setTop(long top) {
+        // at most top lines
+        if (top < 0)
+            throw new IllegalArgumentException("top must not be negative: " + top);
+        this.top = top;
+        return this;
+    }
+
+    public CountWriter setCounts(boolean counts) {
+        // key:count lines, e.g. password:1234 (the count follows the last ':')
+        this.counts = counts;
+        return this;
+    }
+
+    public CountWriter setHex(boolean hex) {
+        // $HEX[...] for keys out of printable ascii (and keys that look like $HEX[...]): for wordlists,
+        // hashcat does not decode it in rules
+        this.hex = hex;
+        return this;
+    }
+
+    public long getMinCount() {
+        return minCount;
+    }
+
+    public long getTop() {
+        return top;
+    }
+
+    public Output open(File file) throws IOException {
+        return new Output(file);
+    }
+
+    public long write(CompactCounter counter, File file) throws IOException {
+        // returns the number of lines written
+        try (Output out = open(file)) {
+            counter.writeByCount(out);
+            return out.getLines();
+        }
+    }
+
+    public class Output implements Closeable {
+        // takes the entries by decreasing count and applies the options: write returns false once
+        // the cutoffs are reached (the following entries would be dropped anyway)
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private byte[] bytes = new byte[256];
+        private long lines;
+
+        private Output(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public long getMinCount() {
+            return minCount;
+        }
+
+        public long getLimit() {
+            return top;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public boolean write(CharSequence key, long count) throws IOException {
+            if (lines >= top || count < minCount)
+                return false;
+            int length = key.length();
+            // a UTF-8 char takes at most 3 bytes (4 for a surrogate pair), twice as many in hex
+            reserve(6 * length + 32);
+            int start = buffer.position();
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c < 0x80)
+                    buffer.put((byte) c);
+                else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1)))
+                    encode(Character.toCodePoint(c, key.charAt(++i)));
+                else
+                    encode(c);
+            }
+            if (hex && needsHex(key))
+                toHex(start);
+            end(count);
+            return true;
+        }
+
+        public boolean write(char[] key, int off, int len, long count) throws IOException {
+            if (lines >= top || count < minCount)
+                return false;
+            reserve(6 * len + 32);
+            int start = buffer.position();
+            for (int i = off; i < off + len; i++) {
+                char c = key[i];
+                if (c < 0x80)
+                    buffer.put((byte) c);
+                else if (Character.isHighSurrogate(c) && i + 1 < off + len && Character.isLowSurrogate(key[i + 1]))
+                    encode(Character.toCodePoint(c, key[++i]));
+                else
+                    encode(c);
+            }
+            if (hex && needsHex(key, off, len))
+                toHex(start);
+            end(count);
+            return true;
+        }
+
+        private void end(long count) {
+            if (counts) {
+                buffer.put((byte) ':');
+                String digits = Long.toString(count);
+                for (int i = 0; i < digits.length(); i++)
+                    buffer.put((byte) digits.charAt(i));
+            }
+            buffer.put((byte) '\n');
+            lines++;
+        }
+
+        private void toHex(int start) {
+            // rewrites the UTF-8 bytes from start as $HEX[...]
+            int n = buffer.position() - start;
+            if (bytes.length < n)
+                bytes = new byte[Math.max(n, 2 * bytes.length)];
+            buffer.position(start);
+            buffer.get(bytes, 0, n);
+            buffer.position(start);
+            buffer.put((byte) '$').put((byte) 'H').put((byte) 'E').put((byte) 'X').put((byte) '[');
+            for (int i = 0; i < n; i++) {
+                buffer.put(HEX_DIGITS[(bytes[i] & 0xFF) >>> 4]);
+                buffer.put(HEX_DIGITS[bytes[i] & 0x0F]);
+            }
+            buffer.put((byte) ']');
+        }
+
+        private void encode(int cp) {
+            if (cp < 0x800) {
+                buffer.put((byte) (0xC0 | cp >> 6));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            } else if (cp >= 0xD800 && cp <= 0xDFFF) {
+                // unpaired surrogate, replaced as String.getBytes does
+                buffer.put((byte) '?');
+            } else if (cp < 0x10000) {
+                buffer.put((byte) (0xE0 | cp >> 12));
+                buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            } else {
+                buffer.put((byte) (0xF0 | cp >> 18));
+                buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            }
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+            if (buffer.remaining() < bytes)
+                throw new IOException("key too long: " + bytes + " bytes");
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static boolean needsHex(CharSequence key) {
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c < ' ' || c > '~')
+                return true;
+        }
+        return length >= 5 && key.charAt(0) == '$' && key.charAt(1) == 'H' && key.charAt(2) == 'E'
+                && key.charAt(3) == 'X' && key.charAt(4) == '[';
+    }
+
+    private static boolean needsHex(char[] key, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            if (key[i] < ' ' || key[i] > '~')
+                return true;
+        return len >= 5 && key[off] == '$' && key[off + 1] == 'H' && key[off + 2] == 'E'
+                && key[off + 3] == 'X' && key[off + 4] == '[';
+    }
+}
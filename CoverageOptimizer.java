@@ -0,0 +1,490 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class CoverageOptimizer {
+
+    // picks the words and the rules that crack the most pwds within a keyspace budget (words x rules
+    // candidates), taking the overlap into account: a pwd is cracked once one of its (word, rule)
+    // pairs has both the word and the rule selected.
+    // the input are the pair groups recorded by the Transformer (setCoverageTracking): one key per
+    // distinct pwd, made of its pairs, counted as many times as the pwd occurs.
+    //
+    // the selection is greedy (see select): the gains of the words and of the rules not selected are
+    // kept up to date incrementally: adding a word only touches the groups that contain it (and the
+    // same for rules), through the inverted indexes word -> groups and rule -> groups. the best ones
+    // come from two max-heaps with lazy deletion (an entry is stale when its gain is not the current one)
+
+    // rounds of words for the rules / rules for the words, for every shape
+    private static final int ROUNDS = 3;
+
+    // groups: weight and pairs, in flat arrays (group g owns pairs [groupStart[g], groupStart[g + 1]))
+    private final int groups;
+    private final long[] weight;
+    private final int[] groupStart;
+    private final int[] pairWord;
+    private final int[] pairRule;
+    private final long total;
+    // inverted indexes, same layout
+    private final int[] wordStart, wordGroups;
+    private final int[] ruleStart, ruleGroups;
+    // ids -> keys (words as chars, rules as RuleBuilder encodings)
+    private final Keys words = new Keys();
+    private final Keys rules = new Keys();
+    // keys -> id + 1
+    private final CompactCounter wordIds = new CompactCounter();
+    private final CompactCounter ruleIds = new CompactCounter();
+
+    // selection state
+    private final BitSet cracked;
+    private final BitSet inWords;
+    private final BitSet inRules;
+    private final long[] wordGain;
+    private final long[] ruleGain;
+    private final LazyHeap wordHeap = new LazyHeap();
+    private final LazyHeap ruleHeap = new LazyHeap();
+    private final List<Integer> selectedWords = new ArrayList<>();
+    private final List<Integer> selectedRules = new ArrayList<>();
+    private long crackedWeight;
+
+    public CoverageOptimizer(CompactCounter pairGroups) {
+        groups = pairGroups.size();
+        weight = new long[groups];
+        groupStart = new int[groups + 1];
+        int[] pw = new int[groups * 2 + 16];
+        int[] pr = new int[groups * 2 + 16];
+        char[] key = new char[64];
+        int pairs = 0;
+        long total = 0;
+        int g = 0;
+        for (CompactCounter.Cursor cursor = pairGroups.cursor(); cursor.next(); g++) {
+            int length = cursor.length();
+            if (key.length < length)
+                key = new char[Math.max(length, key.length * 2)];
+            cursor.chars(key);
+            weight[g] = cursor.count();
+            total += weight[g];
+            groupStart[g] = pairs;
+            for (int i = 0; i < length; ) {
+                int wordLength = key[i++];
+                int word = id(wordIds, words, key, i, wordLength);
+                i += wordLength;
+                int ruleLength = key[i++];
+                int rule = id(ruleIds, rules, key, i, ruleLength);
+                i += ruleLength;
+                if (pairs == pw.length) {
+                    pw = Arrays.copyOf(pw, pairs * 2);
+                    pr = Arrays.copyOf(pr, pairs * 2);
+                }
+                pw[pairs] = word;
+                pr[pairs] = rule;
+                pairs++;
+            }
+        }
+        groupStart[groups] = pairs;
+        this.total = total;
+        pairWord = pw;
+        pairRule = pr;
+        wordStart = new int[words.size() + 1];
+        wordGroups = invert(pairWord, wordStart);
+        ruleStart = new int[rules.size() + 1];
+        ruleGroups = invert(pairRule, ruleStart);
+        cracked = new BitSet(groups);
+        inWords = new BitSet(words.size());
+        inRules = new BitSet(rules.size());
+        wordGain = new long[words.size()];
+        ruleGain = new long[rules.size()];
+    }
+
+    private static int id(CompactCounter ids, Keys keys, char[] key, int off, int len) {
+        long id = ids.get(key, off, len);
+        if (id == 0) {
+            id = keys.size() + 1;
+            ids.add(key, off, len, id);
+            keys.add(key, off, len);
+        }
+        return (int) id - 1;
+    }
+
+    private int[] invert(int[] ids, int[] start) {
+        // id -> groups it appears in (once per group)
+        int[] last = new int[start.length - 1];
+        Arrays.fill(last, -1);
+        for (int g = 0; g < groups; g++)
+            for (int p = groupStart[g]; p < groupStart[g + 1]; p++)
+                if (last[ids[p]] != g) {
+                    last[ids[p]] = g;
+                    start[ids[p] + 1]++;
+                }
+        for (int i = 1; i < start.length; i++)
+            start[i] += start[i - 1];
+        int[] next = Arrays.copyOf(start, start.length - 1);
+        int[] inverted = new int[start[start.length - 1]];
+        Arrays.fill(last, -1);
+        for (int g = 0; g < groups; g++)
+            for (int p = groupStart[g]; p < groupStart[g + 1]; p++)
+                if (last[ids[p]] != g) {
+                    last[ids[p]] = g;
+                    inverted[next[ids[p]]++] = g;
+                }
+        return inverted;
+    }
+
+    public void select(long budget) {
+        // for every shape (words capped at 1, 2, 4..., rules at budget / words), starting from the most
+        // frequent rules: the words are chosen for the rules, then the rules for the words, and so on.
+        // with one side fixed, the other is a max coverage problem, where the greedy is within 1 - 1/e
+        // of the optimum. the best selection of all is kept
+        if (words.size() == 0 || budget < 1) {
+            // nothing to select (no pair has a word, e.g. nothing transformed or only emails)
+            reset();
+            return;
+        }
+        List<Integer> bestWords = new ArrayList<>();
+        List<Integer> bestRules = new ArrayList<>();
+        long bestCracked = -1;
+        for (long cap = 1; ; cap *= 2) {
+            long maxWords = Math.min(cap, words.size());
+            List<Integer> rules = mostFrequent(ruleStart, ruleGroups, Math.min(budget / maxWords, this.rules.size()));
+            for (int round = 0; round < ROUNDS; round++) {
+                // the rules chosen for the words may be more than budget / maxWords: fewer words then
+                List<Integer> words = choose(rules, false, rules.isEmpty() ? maxWords : Math.min(maxWords, budget / rules.size()));
+                if (crackedWeight > bestCracked && (long) words.size() * rules.size() <= budget) {
+                    bestCracked = crackedWeight;
+                    bestWords = words;
+                    bestRules = rules;
+                }
+                if (words.isEmpty())
+                    break;
+                rules = choose(words, true, budget / words.size());
+                if (crackedWeight > bestCracked && (long) words.size() * rules.size() <= budget) {
+                    bestCracked = crackedWeight;
+                    bestWords = words;
+                    bestRules = rules;
+                }
+            }
+            if (maxWords == words.size() || cap >= budget)
+                break;
+        }
+        reset();
+        for (int word : bestWords)
+            addWord(word);
+        for (int rule : bestRules)
+            addRule(rule);
+    }
+
+    private List<Integer> mostFrequent(int[] start, int[] index, long k) {
+        // the k ids with the heaviest groups
+        LazyHeap heap = new LazyHeap();
+        for (int id = 0; id < start.length - 1; id++) {
+            long sum = 0;
+            for (int i = start[id]; i < start[id + 1]; i++)
+                sum += weight[index[i]];
+            heap.push(sum, id);
+        }
+        List<Integer> top = new ArrayList<>();
+        while (top.size() < k && heap.size() > 0) {
+            top.add(heap.peek());
+            heap.pop();
+        }
+        return top;
+    }
+
+    private List<Integer> choose(List<Integer> fixed, boolean rules, long max) {
+        // selects the fixed rules (or words), then greedily up to max words (or rules) for them
+        reset();
+        for (int id : fixed) {
+            if (rules)
+                addWord(id);
+            else
+                addRule(id);
+        }
+        List<Integer> chosen = rules ? selectedRules : selectedWords;
+        while (chosen.size() < max) {
+            int id = rules ? best(ruleHeap, ruleGain, inRules) : best(wordHeap, wordGain, inWords);
+            if (id < 0)
+                break;
+            if (rules)
+                addRule(id);
+            else
+                addWord(id);
+        }
+        return new ArrayList<>(chosen);
+    }
+
+    private void reset() {
+        cracked.clear();
+        inWords.clear();
+        inRules.clear();
+        Arrays.fill(wordGain, 0);
+        Arrays.fill(ruleGain, 0);
+        wordHeap.clear();
+        ruleHeap.clear();
+        selectedWords.clear();
+        selectedRules.clear();
+        crackedWeight = 0;
+    }
+
+    private int best(LazyHeap heap, long[] gain, BitSet selected) {
+        // the id with the highest positive gain, -1 if none
+        while (heap.size() > 0) {
+            int id = heap.peek();
+            if (!selected.get(id) && heap.peekGain() == gain[id])
+                return gain[id] > 0 ? id : -1;
+            heap.pop();
+        }
+        return -1;
+    }
+
+    private void addWord(int word) {
+        add(word, wordStart, wordGroups, pairWord, pairRule, inRules, inWords, ruleGain, ruleHeap);
+        inWords.set(word);
+        selectedWords.add(word);
+    }
+
+    private void addRule(int rule) {
+        add(rule, ruleStart, ruleGroups, pairRule, pairWord, inWords, inRules, wordGain, wordHeap);
+        inRules.set(rule);
+        selectedRules.add(rule);
+    }
+
+    private void add(int id, int[] start, int[] index, int[] ids, int[] others, BitSet otherSelected,
+                     BitSet selected, long[] otherGain, LazyHeap otherHeap) {
+        // adds a word (or a rule: the same with the roles swapped), id is not selected yet.
+        // its groups are cracked if it pairs with a selected rule there; otherwise the rules it
+        // pairs with gain the group, unless a selected word already gave it to them
+        for (int k = start[id]; k < start[id + 1]; k++) {
+            int g = index[k];
+            if (cracked.get(g))
+                continue;
+            boolean crack = false;
+            for (int p = groupStart[g]; p < groupStart[g + 1] && !crack; p++)
+                crack = ids[p] == id && otherSelected.get(others[p]);
+            if (crack) {
+                crack(g);
+                continue;
+            }
+            for (int p = groupStart[g]; p < groupStart[g + 1]; p++) {
+                if (ids[p] != id || repeated(g, p))
+                    continue;
+                int other = others[p];
+                boolean given = false;
+                for (int q = groupStart[g]; q < groupStart[g + 1] && !given; q++)
+                    given = others[q] == other && selected.get(ids[q]);
+                if (!given) {
+                    otherGain[other] += weight[g];
+                    otherHeap.push(otherGain[other], other);
+                }
+            }
+        }
+    }
+
+    private boolean repeated(int g, int p) {
+        // the pair p already appears in g before p
+        for (int q = groupStart[g]; q < p; q++)
+            if (pairWord[q] == pairWord[p] && pairRule[q] == pairRule[p])
+                return true;
+        return false;
+    }
+
+    private void crack(int g) {
+        // g leaves the gains it was counted in: the unselected rules paired with a selected word,
+        // and the unselected words paired with a selected rule
+        cracked.set(g);
+        crackedWeight += weight[g];
+        for (int p = groupStart[g]; p < groupStart[g + 1]; p++) {
+            int word = pairWord[p];
+            int rule = pairRule[p];
+            if (!inRules.get(rule) && inWords.get(word) && firstWith(pairRule, g, p, inWords, pairWord)) {
+                ruleGain[rule] -= weight[g];
+                ruleHeap.push(ruleGain[rule], rule);
+            }
+            if (!inWords.get(word) && inRules.get(rule) && firstWith(pairWord, g, p, inRules, pairRule)) {
+                wordGain[word] -= weight[g];
+                wordHeap.push(wordGain[word], word);
+            }
+        }
+    }
+
+    private boolean firstWith(int[] ids, int g, int p, BitSet selected, int[] others) {
+        // p is the first pair of g with ids[p] and a selected partner
+        for (int q = groupStart[g]; q < p; q++)
+            if (ids[q] == ids[p] && selected.get(others[q]))
+                return false;
+        return true;
+    }
+
+    public long evaluate(Collection<String> words, Collection<String> rules) {
+        // the pwds (with repetitions) a given selection cracks, e.g. the most frequent words and rules
+        BitSet w = new BitSet(this.words.size());
+        for (String word : words) {
+            long id = wordIds.get(word);
+            if (id > 0)
+                w.set((int) id - 1);
+        }
+        BitSet r = new BitSet(this.rules.size());
+        for (String rule : rules) {
+            long id = ruleIds.get(RuleBuilder.encode(rule));
+            if (id > 0)
+                r.set((int) id - 1);
+        }
+        long cracked = 0;
+        for (int g = 0; g < groups; g++) {
+            for (int p = groupStart[g]; p < groupStart[g + 1]; p++) {
+                if (w.get(pairWord[p]) && r.get(pairRule[p])) {
+                    cracked += weight[g];
+                    break;
+                }
+            }
+        }
+        return cracked;
+    }
+
+    public long getTotal() {
+        // pwds (with repetitions) in the pair groups
+        return total;
+    }
+
+    public long getCracked() {
+        return crackedWeight;
+    }
+
+    public double getCoverage() {
+        return total == 0 ? 0 : (double) crackedWeight / total;
+    }
+
+    public long getKeyspace() {
+        return (long) selectedWords.size() * selectedRules.size();
+    }
+
+    public List<String> getWords() {
+        // in order of selection
+        List<String> list = new ArrayList<>(selectedWords.size());
+        for (int word : selectedWords)
+            list.add(words.get(word));
+        return list;
+    }
+
+    public List<String> getRules() {
+        // in order of selection, as hashcat text
+        List<String> list = new ArrayList<>(selectedRules.size());
+        for (int rule : selectedRules)
+            list.add(rules.render(rule));
+        return list;
+    }
+
+    public void writeWords(File file) throws IOException {
+        write(getWords(), file);
+    }
+
+    public void writeRules(File file) throws IOException {
+        write(getRules(), file);
+    }
+
+    private static void write(List<String> lines, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static class Keys {
+        // keys by id, packed in a single char[]
+        private char[] chars = new char[1 << 12];
+        private int[] start = new int[1 << 10];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void add(char[] key, int off, int len) {
+            if (size + 1 == start.length)
+                start = Arrays.copyOf(start, start.length * 2);
+            int end = start[size];
+            if (end + len > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(end + len, chars.length * 2));
+            System.arraycopy(key, off, chars, end, len);
+            start[++size] = end + len;
+        }
+
+        String get(int id) {
+            return new String(chars, start[id], start[id + 1] - start[id]);
+        }
+
+        String render(int id) {
+            return RuleBuilder.render(chars, start[id], start[id + 1] - start[id]);
+        }
+    }
+
+    private static class LazyHeap {
+        // max-heap of (gain, id) entries, by gain then id; stale entries are skipped by the reader.
+        // gains are weighted counts: they do not fit in 32 bits, so they are not packed with the id
+        private long[] gain = new long[1024];
+        private int[] id = new int[1024];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void push(long gain, int id) {
+            if (gain <= 0)
+                return;
+            if (size == this.gain.length) {
+                this.gain = Arrays.copyOf(this.gain, size * 2);
+                this.id = Arrays.copyOf(this.id, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && before(gain, id, this.gain[(i - 1) >> 1], this.id[(i - 1) >> 1])) {
+                this.gain[i] = this.gain[(i - 1) >> 1];
+                this.id[i] = this.id[(i - 1) >> 1];
+                i = (i - 1) >> 1;
+            }
+            this.gain[i] = gain;
+            this.id[i] = id;
+        }
+
+        private static boolean before(long gain, int id, long otherGain, int otherId) {
+            return gain > otherGain || gain == otherGain && id > otherId;
+        }
+
+        int peek() {
+            return id[0];
+        }
+
+        long peekGain() {
+            return gain[0];
+        }
+
+        void pop() {
+            long lastGain = gain[--size];
+            int lastId = id[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(gain[child + 1], id[child + 1], gain[child], id[child]))
+                    child++;
+                if (!before(gain[child], id[child], lastGain, lastId))
+                    break;
+                gain[i] = gain[child];
+                id[i] = id[child];
+                i = child;
+            }
+            if (size > 0) {
+                gain[i] = lastGain;
+                id[i] = lastId;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package it.unive.secgroup;
+
+import java.util.*;
+
+public class DateDetector {
+
+    // recognizes digit strings that may be dates, without parsing nor exceptions.
+    // as for the former LocalDate based check, any day from 1 to 31 is accepted for every month
+    // (a lenient parser moves 31/02 to the end of the month) and only the year is checked against the window
+    public enum Format {
+        YYYYMMDD(8, 0, 4, 4, 6),
+        DDMMYYYY(8, 4, 4, 2, 0),
+        MMDDYYYY(8, 4, 4, 0, 2),
+        DDMMYY  (6, 4, 2, 2, 0),
+        MMDDYY  (6, 4, 2, 0, 2),
+        YYMMDD  (6, 0, 2, 2, 4),
+        YYYY    (4, 0, 4, -1, -1);
+
+        final int length, year, yearDigits, month, day;
+
+        Format(int length, int year, int yearDigits, int month, int day) {
+            this.length = length;
+            this.year = year;
+            this.yearDigits = yearDigits;
+            this.month = month;
+            this.day = day;
+        }
+    }
+
+    public static final int MIN_YEAR = 1950;
+    public static final int MAX_YEAR = 2050;
+    // two digit years are read as 1950-2049
+    private static final int PIVOT = MIN_YEAR % 100;
+
+    public static final Set<Format> DEFAULT_FORMATS =
+            Collections.unmodifiableSet(EnumSet.of(Format.YYYYMMDD, Format.DDMMYYYY, Format.MMDDYYYY));
+    public static final Set<Format> SHORT_FORMATS =
+            Collections.unmodifiableSet(EnumSet.of(Format.DDMMYY, Format.MMDDYY, Format.YYMMDD));
+    public static final Set<Format> YEAR_FORMATS =
+            Collections.unmodifiableSet(EnumSet.of(Format.YYYY));
+    public static final DateDetector DEFAULT = new DateDetector(DEFAULT_FORMATS);
+
+    // formats grouped by length, so that a candidate is only checked against the formats of its length
+    private final Format[][] byLength = new Format[9][];
+
+    public DateDetector(Set<Format> formats) {
+        for (int length = 0; length < byLength.length; length++) {
+            List<Format> matching = new ArrayList<>();
+            for (Format format : formats)
+                if (format.length == length)
+                    matching.add(format);
+            byLength[length] = matching.isEmpty() ? null : matching.toArray(new Format[0]);
+        }
+    }
+
+    public boolean mayBeDate(CharSequence test) {
+        int length = test.length();
+        if (length >= byLength.length || byLength[length] == null)
+            return false;
+        char[] digits = new char[length];
+        for (int i = 0; i < length; i++)
+            digits[i] = test.charAt(i);
+        return mayBeDate(digits, 0, length);
+    }
+
+    public boolean mayBeDate(char[] digits, int off, int length) {
+        if (length >= byLength.length || byLength[length] == null)
+            return false;
+        for (int i = off; i < off + length; i++)
+            if (digits[i] < '0' || digits[i] > '9')
+                return false;
+        for (Format format : byLength[length]) {
+            int year = number(digits, off + format.year, format.yearDigits);
+            if (format.yearDigits == 2)
+                year += year >= PIVOT ? 1900 : 2000;
+            if (year < MIN_YEAR || year > MAX_YEAR)
+                continue;
+            if (format.month < 0)
+                return true;
+            int month = number(digits, off + format.month, 2);
+            int day = number(digits, off + format.day, 2);
+            if (month >= 1 && month <= 12 && day >= 1 && day <= 31)
+                return true;
+        }
+        // no pattern matches...
+        return false;
+    }
+
+    private static int number(char[] digits, int off, int length) {
+        int value = 0;
+        for (int i = off; i < off + length; i++)
+            value = value * 10 + digits[i] - '0';
+        return value;
+    }
+}
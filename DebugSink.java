@@ -0,0 +1,231 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPOutputStream;
+
+public class DebugSink implements Closeable {
+
+    // the debug log (pwd:word:rule rows) written off the analysis threads.
+    // every producer (one per Transformer) encodes its rows as UTF-8 into a large direct buffer,
+    // full buffers are handed to a background thread through a bounded queue: producers only
+    // wait for the disk when the queue is full. buffers are recycled, so memory stays bounded
+
+    private static final int BATCH_SIZE = 1 << 20;
+    private static final int QUEUE_SIZE = 8;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final FileChannel channel;
+    private final OutputStream compressed;
+    private final Thread writer;
+    private volatile IOException error;
+    private boolean closed;
+
+    public DebugSink(File file, boolean compress) throws IOException {
+        if (compress) {
+            channel = null;
+            compressed = new GZIPOutputStream(new FileOutputStream(file), 1 << 16);
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            compressed = null;
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "debug-sink");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Producer producer(int sampling) {
+        // sampling = n keeps one row every n (per producer)
+        if (sampling < 1)
+            throw new IllegalArgumentException("sampling must be at least 1: " + sampling);
+        return new Producer(sampling);
+    }
+
+    private void drain() {
+        byte[] bytes = compressed != null ? new byte[1 << 16] : null;
+        while (true) {
+            ByteBuffer buffer;
+            try {
+                buffer = queue.take();
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("debug sink interrupted");
+                return;
+            }
+            if (buffer == END)
+                return;
+            // after an error, keep consuming so that the producers never block: they will see the error
+            if (error == null) {
+                try {
+                    buffer.flip();
+                    if (channel != null) {
+                        while (buffer.hasRemaining())
+                            channel.write(buffer);
+                    } else {
+                        while (buffer.hasRemaining()) {
+                            int n = Math.min(bytes.length, buffer.remaining());
+                            buffer.get(bytes, 0, n);
+                            compressed.write(bytes, 0, n);
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            buffer.clear();
+            if (buffer.capacity() == BATCH_SIZE)
+                free.offer(buffer);
+        }
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BATCH_SIZE);
+    }
+
+    private void hand(ByteBuffer buffer) {
+        checkError();
+        try {
+            queue.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkError() {
+        if (error != null)
+            throw new RuntimeException(error);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // the producers must have been flushed: waits for the pending batches and reports write errors
+        if (closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the debug log");
+        }
+        try {
+            if (channel != null)
+                channel.close();
+            else
+                compressed.close();
+        } catch (IOException e) {
+            if (error == null)
+                error = e;
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public class Producer {
+        // not thread safe: one per Transformer
+        private final int sampling;
+        private long rows;
+        private ByteBuffer buffer;
+
+        private Producer(int sampling) {
+            this.sampling = sampling;
+        }
+
+        public boolean sample() {
+            // to be called once per row: false if the row is skipped
+            return sampling == 1 || rows++ % sampling == 0;
+        }
+
+        public void row(char[] pwd, int pwdLength, char[] word, int off, int len, CharSequence rule) {
+            // pwd:word:rule
+            reserve(3 * (pwdLength + len + rule.length() + 3));
+            encode(pwd, 0, pwdLength);
+            buffer.put((byte) ':');
+            if (word != null)
+                encode(word, off, off + len);
+            buffer.put((byte) ':');
+            encode(rule);
+            buffer.put((byte) '\n');
+        }
+
+        public void row(CharSequence row) {
+            reserve(3 * (row.length() + 1));
+            encode(row);
+            buffer.put((byte) '\n');
+        }
+
+        public void flush() {
+            if (buffer != null && buffer.position() > 0)
+                hand(buffer);
+            buffer = null;
+        }
+
+        private void reserve(int bytes) {
+            // a UTF-8 char takes at most 3 bytes (4 for a surrogate pair)
+            if (buffer != null && buffer.remaining() >= bytes)
+                return;
+            flush();
+            buffer = bytes <= BATCH_SIZE ? acquire() : ByteBuffer.allocateDirect(bytes);
+        }
+
+        private void encode(char[] chars, int from, int to) {
+            for (int i = from; i < to; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(chars[i + 1])) {
+                    encode(Character.toCodePoint(c, chars[++i]));
+                } else {
+                    encode(c);
+                }
+            }
+        }
+
+        private void encode(CharSequence chars) {
+            int length = chars.length();
+            for (int i = 0; i < length; i++) {
+                char c = chars.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    encode(Character.toCodePoint(c, chars.charAt(++i)));
+                } else {
+                    encode(c);
+                }
+            }
+        }
+
+        private void encode(int cp) {
+            if (cp < 0x800) {
+                buffer.put((byte) (0xC0 | cp >> 6));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            } else if (cp >= 0xD800 && cp <= 0xDFFF) {
+                // unpaired surrogate, replaced as String.getBytes does
+                buffer.put((byte) '?');
+            } else if (cp < 0x10000) {
+                buffer.put((byte) (0xE0 | cp >> 12));
+                buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            } else {
+                buffer.put((byte) (0xF0 | cp >> 18));
+                buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | cp & 0x3F));
+            }
+        }
+    }
+}
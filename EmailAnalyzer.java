@@ -0,0 +1,311 @@
+package it.unive.secgroup;
+
+import java.util.*;
+
+public class EmailAnalyzer {
+
+    // email analysis: the domains of the email pwds are counted in a trie of reversed labels
+    // (com -> gmail, uk -> co -> yahoo), so that a domain costs a few nodes instead of a rule.
+    // only the most frequent domains become rules ($@$g$m$a$i$l$.$c$o$m): email dumps would otherwise
+    // fill the ruleset with millions of domains seen once. every node also counts the emails of its
+    // whole subtree, i.e. the domains with that suffix (co.uk).
+    // the trie is a hash table keyed by (parent node, label): the first level has a huge fan-out.
+    // not thread safe: one per worker, merged at the end
+
+    // node 0 is the root (the empty suffix)
+    private int[] parent = new int[1024];
+    private int[] labelStart = new int[1024];
+    private int[] labelLength = new int[1024];
+    // emails with exactly this domain, and with this domain as a suffix
+    private long[] count = new long[1024];
+    private long[] total = new long[1024];
+    private int nodes = 1;
+    private char[] labels = new char[8192];
+    private int labelsUsed;
+    private int domains;
+    // open addressing, (node index + 1), 0 for an empty slot
+    private int[] table = new int[2048];
+
+    public EmailAnalyzer() {
+        parent[0] = -1;
+    }
+
+    // validation: the same language as Transformer.VALID_EMAIL_ADDRESS_REGEX with find(), in one pass and
+    // without backtracking: ^[A-Z0-9._%+-]+@[A-Z0-9.-]+\.[A-Z]{2,6}$ (ascii letters in any case).
+    // as the regex '$' does, a single line terminator may follow the address
+
+    private static final byte LOCAL = 1, DOMAIN = 2, LETTER = 4;
+    private static final byte[] CHARS = new byte[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHARS[c] = LOCAL | DOMAIN | LETTER;
+            CHARS[c - 32] = LOCAL | DOMAIN | LETTER;
+        }
+        for (char c = '0'; c <= '9'; c++)
+            CHARS[c] = LOCAL | DOMAIN;
+        CHARS['.'] = LOCAL | DOMAIN;
+        CHARS['-'] = LOCAL | DOMAIN;
+        CHARS['_'] = LOCAL;
+        CHARS['%'] = LOCAL;
+        CHARS['+'] = LOCAL;
+    }
+
+    private static boolean is(char c, byte type) {
+        return c < 128 && (CHARS[c] & type) != 0;
+    }
+
+    public static boolean isEmail(CharSequence s) {
+        char[] chars = s.toString().toCharArray();
+        return addressEnd(chars, 0, chars.length) >= 0;
+    }
+
+    public static int addressEnd(char[] s, int off, int len) {
+        // the length of the address in s[off, off + len) (without its final line terminator),
+        // -1 if it is not an email
+        int end = off + len;
+        if (len >= 2 && s[end - 2] == '\r' && s[end - 1] == '\n')
+            end -= 2;
+        else if (len >= 1 && isLineTerminator(s[end - 1]))
+            end--;
+        int at = off;
+        while (at < end && is(s[at], LOCAL))
+            at++;
+        if (at == off || at == end || s[at] != '@')
+            return -1;
+        int dot = -1;
+        for (int i = at + 1; i < end; i++) {
+            char c = s[i];
+            if (!is(c, DOMAIN))
+                return -1;
+            if (c == '.')
+                dot = i;
+        }
+        int tld = end - dot - 1;
+        if (dot <= at + 1 || tld < 2 || tld > 6)
+            return -1;
+        for (int i = dot + 1; i < end; i++)
+            if (!is(s[i], LETTER))
+                return -1;
+        return end - off;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        // the terminators of java.util.regex without UNIX_LINES
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    // domains
+
+    public void add(CharSequence domain, long count) {
+        char[] chars = domain.toString().toCharArray();
+        add(chars, 0, chars.length, count);
+    }
+
+    public void add(char[] domain, int off, int len, long delta) {
+        // domain[off, off + len) as found in the pwd (the case is kept: rules must reproduce it)
+        int node = 0;
+        total[0] += delta;
+        int end = off + len;
+        for (int i = end - 1; i >= off - 1; i--) {
+            if (i >= off && domain[i] != '.')
+                continue;
+            // the label domain[i + 1, end)
+            node = child(node, domain, i + 1, end - i - 1);
+            total[node] += delta;
+            end = i;
+        }
+        if (count[node] == 0)
+            domains++;
+        count[node] += delta;
+    }
+
+    private int child(int node, char[] label, int off, int len) {
+        int mask = table.length - 1;
+        for (int slot = hash(node, label, off, len) & mask; ; slot = (slot + 1) & mask) {
+            int child = table[slot] - 1;
+            if (child < 0)
+                return newNode(node, label, off, len, slot);
+            if (parent[child] == node && labelLength[child] == len && sameLabel(child, label, off, len))
+                return child;
+        }
+    }
+
+    private boolean sameLabel(int node, char[] label, int off, int len) {
+        int start = labelStart[node];
+        for (int i = 0; i < len; i++)
+            if (labels[start + i] != label[off + i])
+                return false;
+        return true;
+    }
+
+    private int newNode(int node, char[] label, int off, int len, int slot) {
+        if (nodes == parent.length) {
+            int length = nodes * 2;
+            parent = Arrays.copyOf(parent, length);
+            labelStart = Arrays.copyOf(labelStart, length);
+            labelLength = Arrays.copyOf(labelLength, length);
+            count = Arrays.copyOf(count, length);
+            total = Arrays.copyOf(total, length);
+        }
+        if (labels.length < labelsUsed + len)
+            labels = Arrays.copyOf(labels, Math.max(labelsUsed + len, labels.length * 2));
+        int child = nodes++;
+        parent[child] = node;
+        labelStart[child] = labelsUsed;
+        labelLength[child] = len;
+        System.arraycopy(label, off, labels, labelsUsed, len);
+        labelsUsed += len;
+        table[slot] = child + 1;
+        if (nodes * 2 > table.length)
+            rehash();
+        return child;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int node = 1; node < nodes; node++) {
+            int slot = hash(parent[node], labels, labelStart[node], labelLength[node]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = node + 1;
+        }
+    }
+
+    private static int hash(int node, char[] label, int off, int len) {
+        int h = node * 0x9E3779B9;
+        for (int i = off; i < off + len; i++)
+            h = (h ^ label[i]) * 0x01000193;
+        return h ^ h >>> 16;
+    }
+
+    private int find(String domain) {
+        // the node of domain, -1 if not in the trie
+        char[] chars = domain.toCharArray();
+        int node = 0;
+        int end = chars.length;
+        for (int i = end - 1; i >= -1 && node >= 0; i--) {
+            if (i >= 0 && chars[i] != '.')
+                continue;
+            int mask = table.length - 1;
+            int next = -1;
+            for (int slot = hash(node, chars, i + 1, end - i - 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int child = table[slot] - 1;
+                if (parent[child] == node && labelLength[child] == end - i - 1 && sameLabel(child, chars, i + 1, end - i - 1)) {
+                    next = child;
+                    break;
+                }
+            }
+            node = next;
+            end = i;
+        }
+        return node;
+    }
+
+    public long count(String domain) {
+        // emails with exactly this domain
+        int node = find(domain);
+        return node < 0 ? 0 : count[node];
+    }
+
+    public long suffixCount(String suffix) {
+        // emails whose domain ends with these labels, e.g. "co.uk" (the empty suffix: all of them)
+        if (suffix.isEmpty())
+            return total[0];
+        int node = find(suffix);
+        return node < 0 ? 0 : total[node];
+    }
+
+    public int size() {
+        // distinct domains
+        return domains;
+    }
+
+    public long total() {
+        return total[0];
+    }
+
+    private String domain(int node) {
+        StringBuilder domain = new StringBuilder();
+        for (; node > 0; node = parent[node]) {
+            if (domain.length() > 0)
+                domain.append('.');
+            domain.append(labels, labelStart[node], labelLength[node]);
+        }
+        return domain.toString();
+    }
+
+    public List<Map.Entry<String, Long>> topDomains(int k, long minCount) {
+        // the k most frequent domains seen at least minCount times, by decreasing count (ties by domain)
+        int n = 0;
+        long[] packed = new long[Math.min(domains, 1024)];
+        for (int node = 1; node < nodes; node++) {
+            if (count[node] == 0 || count[node] < minCount)
+                continue;
+            if (n == packed.length)
+                packed = Arrays.copyOf(packed, n * 2);
+            packed[n++] = (Integer.MAX_VALUE - Math.min(count[node], Integer.MAX_VALUE)) << 32 | node;
+        }
+        Arrays.sort(packed, 0, n);
+        // the domains tied with the k-th one are all candidates: ties are broken by domain
+        int end = Math.min(n, k);
+        while (end > 0 && end < n && packed[end] >>> 32 == packed[end - 1] >>> 32)
+            end++;
+        List<Map.Entry<String, Long>> top = new ArrayList<>(end);
+        for (int i = 0; i < end; i++) {
+            int node = (int) packed[i];
+            top.add(new AbstractMap.SimpleImmutableEntry<>(domain(node), count[node]));
+        }
+        Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int c = Long.compare(b.getValue(), a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return top.size() > k ? new ArrayList<>(top.subList(0, k)) : top;
+    }
+
+    static void domainRule(CharSequence domain, RuleBuilder rule) {
+        // the rule appending @domain to a local part (as the literal email rule, not trimmed)
+        rule.clear();
+        rule.append('@');
+        for (int i = 0; i < domain.length(); i++)
+            rule.append(domain.charAt(i));
+        rule.finish(false);
+    }
+
+    CompactCounter toCounter() {
+        // domain -> emails: the form of the domains in checkpoints and partition files
+        CompactCounter counter = new CompactCounter();
+        for (int node = 1; node < nodes; node++)
+            if (count[node] > 0)
+                counter.add(domain(node), count[node]);
+        return counter;
+    }
+
+    void addAll(CompactCounter domains) {
+        // adds the domains of a counter made by toCounter
+        char[] domain = new char[64];
+        for (CompactCounter.Cursor cursor = domains.cursor(); cursor.next(); ) {
+            if (domain.length < cursor.length())
+                domain = new char[Math.max(cursor.length(), domain.length * 2)];
+            cursor.chars(domain);
+            add(domain, 0, cursor.length(), cursor.count());
+        }
+    }
+
+    public void merge(EmailAnalyzer other) {
+        // adds the domains of another (e.g. worker-local) analyzer
+        for (int node = 1; node < other.nodes; node++)
+            if (other.count[node] > 0) {
+                char[] domain = other.domain(node).toCharArray();
+                add(domain, 0, domain.length, other.count[node]);
+            }
+    }
+
+    public long memoryUsage() {
+        return (long) parent.length * (4 + 4 + 4 + 8 + 8) + labels.length * 2L + table.length * 4L;
+    }
+}
@@ -0,0 +1,263 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class LeetDecoder {
+
+    // finds the dictionary word a leetspeak token stands for (p@$$w0rd -> password, 1itt|e -> little).
+    // every symbol may stand for several letters (many-to-many table, 1 -> i or l), so the candidates are
+    // searched in a trie of the dictionary: a branch is dropped as soon as no word has that prefix.
+    // among the decodings found, the one of the word listed first in the dictionary wins.
+    // substitutions are char for char (no |_| for u): the decoded word is as long as the token.
+    // immutable once built, shared by the workers; every worker keeps its own Memo of the results
+
+    // the former REPLACEABLE/REPLACED pairs, plus the letters they missed
+    public static final String DEFAULT_TABLE =
+            "0:o 1:il 2:z 3:e 4:a 5:s 6:bg 7:t 8:b 9:g $:s @:a (:c +:t |:il !:il";
+
+    // longest token searched: the search is exponential in the number of ambiguous symbols
+    private static final int MAX_TOKEN = 32;
+
+    private final char[][] table = new char[128][];
+
+    // trie: node 0 is the root, children are linked lists (first child, next sibling)
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private char[] label = new char[1024];
+    // rank of the word ending at the node (its position in the dictionary), -1 if none
+    private int[] rank = new int[1024];
+    private int nodes = 1;
+    private int words;
+
+    public LeetDecoder() {
+        this(DEFAULT_TABLE);
+    }
+
+    public LeetDecoder(String table) {
+        // table: space separated symbol:letters entries, e.g. "1:il 0:o"
+        for (String entry : table.trim().split("\\s+")) {
+            if (entry.length() < 3 || entry.charAt(1) != ':' || entry.charAt(0) >= 128)
+                throw new IllegalArgumentException("bad substitution: " + entry);
+            this.table[entry.charAt(0)] = entry.substring(2).toLowerCase().toCharArray();
+        }
+        firstChild[0] = -1;
+        rank[0] = -1;
+    }
+
+    public LeetDecoder addWords(Collection<String> dictionary) {
+        // words are ranked in order (most likely first)
+        for (String word : dictionary)
+            addWord(word);
+        return this;
+    }
+
+    public LeetDecoder addWords(File dictionary) throws IOException {
+        // one word per line
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(dictionary), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                addWord(line);
+        }
+        return this;
+    }
+
+    private void addWord(String word) {
+        if (word.isEmpty() || word.length() > MAX_TOKEN)
+            return;
+        word = word.toLowerCase();
+        int node = 0;
+        for (int i = 0; i < word.length(); i++) {
+            int child = child(node, word.charAt(i));
+            if (child < 0)
+                child = newNode(node, word.charAt(i));
+            node = child;
+        }
+        if (rank[node] < 0)
+            rank[node] = words++;
+    }
+
+    private int newNode(int parent, char c) {
+        if (nodes == label.length) {
+            int length = nodes * 2;
+            firstChild = Arrays.copyOf(firstChild, length);
+            nextSibling = Arrays.copyOf(nextSibling, length);
+            label = Arrays.copyOf(label, length);
+            rank = Arrays.copyOf(rank, length);
+        }
+        int node = nodes++;
+        label[node] = c;
+        firstChild[node] = -1;
+        rank[node] = -1;
+        nextSibling[node] = firstChild[parent];
+        firstChild[parent] = node;
+        return node;
+    }
+
+    private int child(int node, char c) {
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child])
+            if (label[child] == c)
+                return child;
+        return -1;
+    }
+
+    public int size() {
+        return words;
+    }
+
+    public boolean substitutes(char c) {
+        // c stands for some letter
+        return c < 128 && table[c >= 'A' && c <= 'Z' ? c + 32 : c] != null;
+    }
+
+    public String decode(CharSequence token) {
+        char[] chars = token.toString().toCharArray();
+        return decode(chars, 0, chars.length);
+    }
+
+    public String decode(char[] token, int off, int len) {
+        // the dictionary word token[off, off + len) stands for, with at least one substitution; null if none
+        if (len == 0 || len > MAX_TOKEN)
+            return null;
+        Search search = new Search(token, off, len);
+        search.visit(0, 0, false);
+        return search.best;
+    }
+
+    private class Search {
+        private final char[] token;
+        private final int off, len;
+        private final char[] candidate;
+        private int bestRank = Integer.MAX_VALUE;
+        private String best;
+
+        Search(char[] token, int off, int len) {
+            this.token = token;
+            this.off = off;
+            this.len = len;
+            this.candidate = new char[len];
+        }
+
+        void visit(int i, int node, boolean substituted) {
+            if (i == len) {
+                if (substituted && rank[node] >= 0 && rank[node] < bestRank) {
+                    bestRank = rank[node];
+                    best = new String(candidate);
+                }
+                return;
+            }
+            char c = token[off + i];
+            if (c >= 'A' && c <= 'Z')
+                c += 32;
+            char[] letters = c < 128 ? table[c] : null;
+            if (letters != null) {
+                for (char letter : letters)
+                    step(i, node, letter, true);
+            } else {
+                step(i, node, c, substituted);
+            }
+        }
+
+        private void step(int i, int node, char c, boolean substituted) {
+            int child = child(node, c);
+            if (child >= 0) {
+                candidate[i] = c;
+                visit(i + 1, child, substituted);
+            }
+        }
+    }
+
+    public static class Memo {
+        // the decodings of the last tokens seen (one per worker: not thread safe).
+        // tokens are keyed lower case: the case does not change the decoding ("" when there is none).
+        // the token is looked up in place through probe, keys are copied only when an entry is stored
+
+        private final LeetDecoder decoder;
+        private final LinkedHashMap<Key, String> cache;
+        private final char[] lower = new char[MAX_TOKEN];
+        private final Key probe = new Key(lower, 0, 0);
+        private long hits, misses;
+
+        public Memo(LeetDecoder decoder, final int capacity) {
+            this.decoder = decoder;
+            this.cache = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        public String decode(char[] token, int off, int len) {
+            if (len == 0 || len > MAX_TOKEN)
+                return null;
+            int hash = 0;
+            for (int i = 0; i < len; i++) {
+                char c = token[off + i];
+                lower[i] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+                hash = 31 * hash + lower[i];
+            }
+            probe.length = len;
+            probe.hash = hash;
+            String decoded = cache.get(probe);
+            if (decoded == null) {
+                misses++;
+                decoded = decoder.decode(lower, 0, len);
+                if (decoded == null)
+                    decoded = "";
+                cache.put(new Key(Arrays.copyOf(lower, len), len, hash), decoded);
+            } else {
+                hits++;
+            }
+            return decoded.isEmpty() ? null : decoded;
+        }
+
+        public boolean substitutes(char c) {
+            return decoder.substitutes(c);
+        }
+
+        public LeetDecoder getDecoder() {
+            return decoder;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+    }
+
+    private static final class Key {
+        // a lower case token in chars[0, length): stored keys own their chars, the probe is the buffer of Memo
+        final char[] chars;
+        int length;
+        int hash;
+
+        Key(char[] chars, int length, int hash) {
+            this.chars = chars;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            if (other.hash != hash || other.length != length)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (other.chars[i] != chars[i])
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package it.unive.secgroup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelTransformer {
+
+    // number of passwords handed to a worker at once:
+    // big enough to amortize the hand-off, small enough to keep the workers balanced
+    private static final int CHUNK_SIZE = 16384;
+    private static final List<String> END_OF_INPUT = new ArrayList<>(0);
+
+    private final int threads;
+    private final Transformer.CharType singleType;
+    private final Transformer result;
+    private boolean enhancedCopy = false;
+    private boolean unicodeLetters;
+    private Set<DateDetector.Format> dateFormats = DateDetector.DEFAULT_FORMATS;
+    private Transformer.Verification verification = Transformer.Verification.None;
+    private boolean coverageTracking;
+    private boolean segmentation;
+    private LeetDecoder leetDecoder;
+    private TransformerMetrics metrics;
+    private long cacheBytes;
+    private int topDomains;
+    private long domainMinCount;
+    private File spillDir;
+    private long spillBudget;
+    private int topWords, topRules;
+    private double epsilon, delta;
+    // one debug log shared by the workers: rows of different workers interleave by batch
+    private DebugSink debugSink;
+    private int debugSampling;
+
+    public ParallelTransformer(int threads) {
+        this(threads, null);
+    }
+
+    public ParallelTransformer(int threads, Transformer.CharType singleType) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        this.threads = threads;
+        this.singleType = singleType;
+        this.result = newWorker();
+    }
+
+    private Transformer newWorker() {
+        // every worker owns its Transformer (and so its counters): no shared state while transforming
+        Transformer worker = singleType == null ? new Transformer() : new Transformer(singleType);
+        worker.setEnhancedCopy(enhancedCopy);
+        worker.setUnicodeLetters(unicodeLetters);
+        worker.setDateFormats(dateFormats);
+        worker.setVerification(verification);
+        worker.setCoverageTracking(coverageTracking);
+        worker.setSegmentation(segmentation);
+        worker.setLeetDecoder(leetDecoder);
+        worker.setMetrics(metrics);
+        worker.setCache(cacheBytes / threads);
+        worker.setEmailAnalysis(topDomains, domainMinCount);
+        if (spillDir != null)
+            worker.setSpill(spillDir, spillBudget / threads);
+        if (topWords > 0)
+            worker.setApproximate(topWords, topRules, epsilon, delta);
+        if (debugSink != null)
+            worker.setDebug(debugSink, debugSampling);
+        return worker;
+    }
+
+    public void transform(final List<String> pwds) {
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        run(new Worker() {
+            @Override
+            public void process(Transformer transformer) {
+                int start;
+                while ((start = nextChunk.getAndIncrement() * CHUNK_SIZE) < pwds.size()) {
+                    int end = Math.min(start + CHUNK_SIZE, pwds.size());
+                    for (int i = start; i < end; i++)
+                        transformer.transform(pwds.get(i));
+                }
+            }
+        });
+    }
+
+    public void transform(File file) throws IOException {
+        transform(file, 0, file.length());
+    }
+
+    public void transform(File file, long start, long end) throws IOException {
+        // the lines starting in [start, end), start being at the beginning of a line.
+        // every worker maps and decodes its own ranges of the file, starting on line boundaries
+        transform(file, start, end, false);
+    }
+
+    public void transformWeighted(File file) throws IOException {
+        transformWeighted(file, 0, file.length());
+    }
+
+    public void transformWeighted(File file, long start, long end) throws IOException {
+        // as transform, for count:password lines (see PasswordFileReader.readWeighted)
+        transform(file, start, end, true);
+    }
+
+    private void transform(File file, long start, long end, final boolean weighted) throws IOException {
+        try (final PasswordFileReader reader = new PasswordFileReader(file)) {
+            final long[] bounds = reader.split(start, Math.min(end, reader.size()), threads * 4);
+            final AtomicInteger nextRange = new AtomicInteger(0);
+            run(new Worker() {
+                @Override
+                public void process(final Transformer transformer) throws IOException {
+                    PasswordFileReader.LineConsumer consumer = new PasswordFileReader.LineConsumer() {
+                        @Override
+                        public void accept(char[] chars, int off, int len) {
+                            transformer.transform(chars, off, len);
+                        }
+                    };
+                    PasswordFileReader.WeightedConsumer weightedConsumer = new PasswordFileReader.WeightedConsumer() {
+                        @Override
+                        public void accept(char[] chars, int off, int len, long count) {
+                            transformer.transform(chars, off, len, count);
+                        }
+                    };
+                    int range;
+                    while ((range = nextRange.getAndIncrement()) < bounds.length - 1) {
+                        if (weighted)
+                            reader.readWeighted(bounds[range], bounds[range + 1], weightedConsumer);
+                        else
+                            reader.read(bounds[range], bounds[range + 1], consumer);
+                    }
+                }
+            });
+        }
+    }
+
+    public void transform(final Iterator<String> pwds) {
+        // the calling thread reads the input and feeds the workers through a bounded queue
+        final BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<>(threads * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Transformer>> futures = submit(executor, new Worker() {
+            @Override
+            public void process(Transformer transformer) throws InterruptedException {
+                List<String> chunk;
+                while ((chunk = chunks.take()) != END_OF_INPUT) {
+                    for (String pwd : chunk)
+                        transformer.transform(pwd);
+                }
+            }
+        });
+        try {
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            while (pwds.hasNext()) {
+                chunk.add(pwds.next());
+                if (chunk.size() == CHUNK_SIZE) {
+                    offer(chunks, chunk, futures);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty())
+                offer(chunks, chunk, futures);
+            for (int i = 0; i < threads; i++)
+                offer(chunks, END_OF_INPUT, futures);
+            collect(futures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void offer(BlockingQueue<List<String>> chunks, List<String> chunk, List<Future<Transformer>> futures)
+            throws InterruptedException {
+        // do not block forever if a worker died and nobody is consuming anymore
+        while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            for (Future<Transformer> future : futures)
+                if (future.isDone())
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause());
+                    }
+        }
+    }
+
+    private void run(Worker worker) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            collect(submit(executor, worker));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Future<Transformer>> submit(ExecutorService executor, final Worker worker) {
+        List<Future<Transformer>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final Transformer transformer = newWorker();
+            futures.add(executor.submit(new Callable<Transformer>() {
+                @Override
+                public Transformer call() throws Exception {
+                    try {
+                        worker.process(transformer);
+                    } catch (Exception | Error e) {
+                        transformer.close();
+                        throw e;
+                    } finally {
+                        transformer.flushDebug();
+                    }
+                    return transformer;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private void collect(List<Future<Transformer>> futures) {
+        // partial counters are merged once per worker, at the end of the run
+        List<Transformer> partials = new ArrayList<>(futures.size());
+        try {
+            for (Future<Transformer> future : futures)
+                partials.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(futures);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            discard(futures);
+            throw new RuntimeException(e.getCause());
+        }
+        for (Transformer partial : partials)
+            result.merge(partial);
+    }
+
+    private static void discard(List<Future<Transformer>> futures) {
+        // the runs spilled by the workers that finished, which are not going to be merged
+        for (Future<Transformer> future : futures)
+            if (future.isDone() && !future.isCancelled())
+                try {
+                    future.get().close();
+                } catch (InterruptedException | ExecutionException e) {
+                    // failed workers clean up after themselves
+                }
+    }
+
+    Transformer result() {
+        return result;
+    }
+
+    private interface Worker {
+        void process(Transformer transformer) throws Exception;
+    }
+
+    public Map<String, Integer> getWords() {
+        return result.getWords();
+    }
+
+    public Map<String, Integer> getRules() {
+        return result.getRules();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setEnhancedCopy(boolean value) {
+        enhancedCopy = value;
+        result.setEnhancedCopy(value);
+    }
+
+    public void setUnicodeLetters(boolean value) {
+        unicodeLetters = value;
+        result.setUnicodeLetters(value);
+    }
+
+    public void setCoverageTracking(boolean value) {
+        coverageTracking = value;
+        result.setCoverageTracking(value);
+    }
+
+    public CoverageOptimizer getCoverageOptimizer() {
+        return result.getCoverageOptimizer();
+    }
+
+    public void setSegmentation(boolean value) {
+        segmentation = value;
+        result.setSegmentation(value);
+    }
+
+    public SegmentAnalyzer getSegments() {
+        return result.getSegments();
+    }
+
+    public void setLeetDecoder(LeetDecoder decoder) {
+        // the decoder (and its dictionary) is shared, every worker memoizes on its own
+        leetDecoder = decoder;
+        result.setLeetDecoder(decoder);
+    }
+
+    public void setMetrics(TransformerMetrics metrics) {
+        // shared by the workers: the counters are striped
+        this.metrics = metrics;
+        result.setMetrics(metrics);
+    }
+
+    public void setCache(long maxBytes) {
+        // the budget is shared among the workers, every worker memoizes its own pwds
+        cacheBytes = maxBytes;
+        result.setCache(maxBytes);
+    }
+
+    public TransformCache getCache() {
+        // the statistics of the workers, after the run
+        return result.getCache();
+    }
+
+    public void setEmailAnalysis(int topDomains, long minCount) {
+        // every worker counts its domains, the top ones are taken from the merged counts by finished()
+        this.topDomains = topDomains;
+        domainMinCount = minCount;
+        result.setEmailAnalysis(topDomains, minCount);
+    }
+
+    public EmailAnalyzer getEmailAnalyzer() {
+        return result.getEmailAnalyzer();
+    }
+
+    public void setVerification(Transformer.Verification mode) {
+        verification = mode;
+        result.setVerification(mode);
+    }
+
+    public List<String> topWords(int k) {
+        return result.topWords(k);
+    }
+
+    public List<String> topRules(int k) {
+        return result.topRules(k);
+    }
+
+    public long getVerified() {
+        return result.getVerified();
+    }
+
+    public Map<String, Integer> getMismatches() {
+        return result.getMismatches();
+    }
+
+    public void setDateFormats(Set<DateDetector.Format> formats) {
+        dateFormats = formats;
+        result.setDateFormats(formats);
+    }
+
+    public void setSpill(File dir, long memoryBudget) {
+        // the budget is shared among the workers; the runs they spill are merged by finished()
+        spillDir = dir;
+        spillBudget = memoryBudget;
+        result.setSpill(dir, memoryBudget / threads);
+    }
+
+    public void setApproximate(int topWords, int topRules, double epsilon, double delta) {
+        // every worker has its own sketches (same bounds, so they can be merged)
+        this.topWords = topWords;
+        this.topRules = topRules;
+        this.epsilon = epsilon;
+        this.delta = delta;
+        result.setApproximate(topWords, topRules, epsilon, delta);
+    }
+
+    public void writeWordEstimates(File file) throws IOException {
+        result.writeWordEstimates(file);
+    }
+
+    public void writeRuleEstimates(File file) throws IOException {
+        result.writeRuleEstimates(file);
+    }
+
+    public void writeWords(File file) throws IOException {
+        result.writeWords(file);
+    }
+
+    public void writeRules(File file) throws IOException {
+        result.writeRules(file);
+    }
+
+    public long writeWords(File file, CountWriter writer) throws IOException {
+        return result.writeWords(file, writer);
+    }
+
+    public long writeRules(File file, CountWriter writer) throws IOException {
+        return result.writeRules(file, writer);
+    }
+
+    public RuleCanonicalizer canonicalizeRules() {
+        // after finished()
+        return result.canonicalizeRules();
+    }
+
+    public void setDebug(File debug) {
+        setDebug(debug, false, 1);
+    }
+
+    public void setDebug(File debug, boolean compress, int sampling) {
+        try {
+            debugSink = new DebugSink(debug, compress);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        debugSampling = sampling;
+        result.setDebug(debugSink, sampling);
+    }
+
+    public void close() {
+        // deletes the spilled runs still on disk (see Transformer.close)
+        result.close();
+    }
+
+    public void finished() {
+        result.finished();
+        if (debugSink != null)
+            try {
+                debugSink.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+    }
+}
@@ -0,0 +1,462 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PartitionedRun {
+
+    // map/reduce over processes sharing a directory (a local one, or a shared filesystem for several
+    // machines): no network service, every step communicates through files in dir.
+    //  - worker i of n transforms the i-th slice of every input (PasswordFileReader.split, so every
+    //    worker computes the same slices) and hash-partitions its words and rules into P partition
+    //    files, then writes its done marker;
+    //  - reduce checks that the n markers agree, merges every partition on its own (in parallel: a key
+    //    lives in a single partition, so its count is final there) into a run sorted by count, and
+    //    merges the P runs into the wordlist and the ruleset.
+    // with the email analysis (Transformer.setEmailAnalysis) the workers partition their domain counts
+    // too, and reduce adds the rules of the top domains of the whole run to the rules of their partitions.
+    // the output is the same as a single Transformer over all the inputs. a partition is held in
+    // memory by the reducer: choose P so that a partition fits (one per reduce thread).
+    // run() does it all on one box: the workers are launched as JVMs with the classpath of this one.
+    //
+    // partition files (words-<p>.<i>.part, rules-<p>.<i>.part, domains-<p>.<i>.part) are in the run
+    // format of SpillingCounter, keys in their internal form. done marker (worker-<i>.done, big endian):
+    //   [magic][version][worker][workers][partitions][top domains (0: no email analysis)][domain min count]
+    //   [inputs: count, then (name, size) each]
+    // partition files and markers stay in dir: reduce can be run again with other options
+
+    // usage: java it.unive.secgroup.PartitionedRun [options] run <dir> <workers> <partitions> <words> <rules> <inputs...>
+    //        java it.unive.secgroup.PartitionedRun [options] worker <dir> <workers> <partitions> <index> <inputs...>
+    //        java it.unive.secgroup.PartitionedRun [options] reduce <dir> <words> <rules>
+    // options: -threads n (transform threads of every worker, and reduce threads), -weighted (count:password
+    //          input), -J<option> (JVM option of the workers launched by run, e.g. -J-Xmx8g)
+
+    private static final int MAGIC = 0x524B5052; // RKPR
+    // 2: the email analysis
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1 << 15;
+
+    private final File dir;
+    private final int workers;
+    private final int partitions;
+    // the email analysis of the workers, from their markers (reduce)
+    private int topDomains;
+    private long domainMinCount;
+
+    public PartitionedRun(File dir, int workers, int partitions) {
+        if (workers < 1 || partitions < 1)
+            throw new IllegalArgumentException("invalid run: " + workers + " workers, " + partitions + " partitions");
+        this.dir = dir;
+        this.workers = workers;
+        this.partitions = partitions;
+    }
+
+    public static PartitionedRun open(File dir) throws IOException {
+        // the run whose workers left their markers in dir
+        File[] markers = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("worker-") && name.endsWith(".done");
+            }
+        });
+        if (markers == null || markers.length == 0)
+            throw new IOException("no finished worker in " + dir);
+        Marker marker = Marker.read(markers[0]);
+        return new PartitionedRun(dir, marker.workers, marker.partitions);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void work(int index, List<File> inputs, final Transformer transformer, boolean weighted) throws IOException {
+        // the map step of worker index: its slice of every input, then the partition files
+        checkIndex(index);
+        if (!transformer.isExact())
+            throw new IllegalStateException("workers need exact in-memory counters (no spill nor approximate mode)");
+        marker(index).delete();
+        PasswordFileReader.LineConsumer consumer = new PasswordFileReader.LineConsumer() {
+            @Override
+            public void accept(char[] chars, int off, int len) {
+                transformer.transform(chars, off, len);
+            }
+        };
+        PasswordFileReader.WeightedConsumer weightedConsumer = new PasswordFileReader.WeightedConsumer() {
+            @Override
+            public void accept(char[] chars, int off, int len, long count) {
+                transformer.transform(chars, off, len, count);
+            }
+        };
+        for (File input : inputs) {
+            try (PasswordFileReader reader = new PasswordFileReader(input)) {
+                long[] bounds = reader.split(workers);
+                if (weighted)
+                    reader.readWeighted(bounds[index], bounds[index + 1], weightedConsumer);
+                else
+                    reader.read(bounds[index], bounds[index + 1], consumer);
+            }
+        }
+        transformer.deferDomainRules();
+        transformer.finished();
+        finish(index, inputs, transformer);
+    }
+
+    public void work(int index, List<File> inputs, ParallelTransformer transformer, boolean weighted) throws IOException {
+        checkIndex(index);
+        if (!transformer.result().isExact())
+            throw new IllegalStateException("workers need exact in-memory counters (no spill nor approximate mode)");
+        marker(index).delete();
+        for (File input : inputs) {
+            long[] bounds;
+            try (PasswordFileReader reader = new PasswordFileReader(input)) {
+                bounds = reader.split(workers);
+            }
+            if (weighted)
+                transformer.transformWeighted(input, bounds[index], bounds[index + 1]);
+            else
+                transformer.transform(input, bounds[index], bounds[index + 1]);
+        }
+        transformer.result().deferDomainRules();
+        transformer.finished();
+        finish(index, inputs, transformer.result());
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= workers)
+            throw new IllegalArgumentException("worker " + index + " out of " + workers);
+    }
+
+    private void finish(int index, List<File> inputs, Transformer transformer) throws IOException {
+        // partition files first, the marker last: a worker without marker has not finished
+        partition(transformer.getWordCounter(), "words", index);
+        partition(transformer.getRuleCounter(), "rules", index);
+        if (transformer.getEmailAnalyzer() != null)
+            partition(transformer.getEmailAnalyzer().toCounter(), "domains", index);
+        Marker marker = new Marker();
+        marker.worker = index;
+        marker.workers = workers;
+        marker.partitions = partitions;
+        marker.topDomains = transformer.getTopDomains();
+        marker.domainMinCount = transformer.getDomainMinCount();
+        for (File input : inputs) {
+            marker.names.add(input.getName());
+            marker.sizes.add(input.length());
+        }
+        File temp = new File(dir, "worker-" + index + ".tmp");
+        marker.write(temp);
+        Files.move(temp.toPath(), marker(index).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void partition(CompactCounter counter, String name, int index) throws IOException {
+        File[] temps = new File[partitions];
+        DataOutputStream[] outs = new DataOutputStream[partitions];
+        try {
+            for (int p = 0; p < partitions; p++) {
+                temps[p] = new File(dir, name + "-" + p + "." + index + ".tmp");
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temps[p]), BUFFER_SIZE));
+            }
+            char[] key = new char[64];
+            for (CompactCounter.Cursor cursor = counter.cursor(); cursor.next(); ) {
+                int length = cursor.length();
+                if (key.length < length)
+                    key = new char[Math.max(length, key.length * 2)];
+                cursor.chars(key);
+                SpillingCounter.writeEntry(outs[partition(key, length, partitions)], key, length, cursor.count());
+            }
+        } finally {
+            for (DataOutputStream out : outs)
+                if (out != null)
+                    out.close();
+        }
+        for (int p = 0; p < partitions; p++)
+            Files.move(temps[p].toPath(), part(name, p, index).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static int partition(char[] key, int length, int partitions) {
+        // stable across JVMs and machines (no String.hashCode seed, no identity)
+        long h = length;
+        for (int i = 0; i < length; i++)
+            h = (h ^ key[i]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        return (int) ((h & Long.MAX_VALUE) % partitions);
+    }
+
+    public long[] reduce(File words, File rules, int threads) throws IOException {
+        return reduce(words, rules, threads, new CountWriter());
+    }
+
+    public long[] reduce(File words, File rules, int threads, CountWriter writer) throws IOException {
+        // returns the number of lines of words and rules
+        checkMarkers();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompactCounter[] domainRules = topDomainRules();
+            return new long[] {reduce("words", null, null, words, executor, writer),
+                    reduce("rules", domainRules, RuleBuilder.FORMAT, rules, executor, writer)};
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CompactCounter[] topDomainRules() throws IOException {
+        // the rules of the top domains of the run, by rule partition (null without email analysis).
+        // a domain is in one partition only: the top domains of the run are among the top ones of the
+        // partitions, chosen as EmailAnalyzer.topDomains does (by decreasing count, ties by domain)
+        if (topDomains == 0)
+            return null;
+        EmailAnalyzer candidates = new EmailAnalyzer();
+        for (int p = 0; p < partitions; p++) {
+            EmailAnalyzer partition = new EmailAnalyzer();
+            for (int index = 0; index < workers; index++) {
+                try (SpillingCounter.Run run = new SpillingCounter.Run(part("domains", p, index))) {
+                    while (run.next())
+                        partition.add(run.key, 0, run.length, run.count);
+                }
+            }
+            for (Map.Entry<String, Long> domain : partition.topDomains(topDomains, domainMinCount))
+                candidates.add(domain.getKey(), domain.getValue());
+        }
+        CompactCounter[] rules = new CompactCounter[partitions];
+        for (int p = 0; p < partitions; p++)
+            rules[p] = new CompactCounter();
+        RuleBuilder rule = new RuleBuilder();
+        for (Map.Entry<String, Long> domain : candidates.topDomains(topDomains, domainMinCount)) {
+            EmailAnalyzer.domainRule(domain.getKey(), rule);
+            rules[partition(rule.ops(), rule.length(), partitions)].add(rule.ops(), 0, rule.length(), domain.getValue());
+        }
+        return rules;
+    }
+
+    private long reduce(final String name, final CompactCounter[] extra, CompactCounter.KeyFormat format, File output,
+                        ExecutorService executor, final CountWriter writer) throws IOException {
+        List<Future<File>> futures = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            futures.add(executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return sortPartition(name, partition, extra != null ? extra[partition] : null, writer);
+                }
+            }));
+        }
+        List<File> sorted = new ArrayList<>(partitions);
+        try {
+            for (Future<File> future : futures)
+                sorted.add(future.get());
+            try (CountWriter.Output out = writer.open(output)) {
+                SpillingCounter.mergeByCount(sorted, format, out);
+                return out.getLines();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<File> future : futures)
+                future.cancel(true);
+            for (int p = 0; p < partitions; p++)
+                new File(dir, name + "-" + p + ".sorted").delete();
+        }
+    }
+
+    private File sortPartition(String name, int partition, CompactCounter extra, CountWriter writer) throws IOException {
+        // the counts of the partition from every worker (plus extra ones, e.g. the domain rules), as a run
+        // by decreasing count (ties by key).
+        // the cutoffs of writer apply: a key is in one partition only, its count is complete here
+        CompactCounter counter = new CompactCounter();
+        if (extra != null)
+            counter.addAll(extra);
+        for (int index = 0; index < workers; index++) {
+            try (SpillingCounter.Run run = new SpillingCounter.Run(part(name, partition, index))) {
+                while (run.next())
+                    counter.add(run.key, 0, run.length, run.count);
+            }
+        }
+        File sorted = new File(dir, name + "-" + partition + ".sorted");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sorted), 1 << 16))) {
+            counter.writeRunByCount(out, writer.getMinCount(), writer.getTop());
+        }
+        return sorted;
+    }
+
+    private void checkMarkers() throws IOException {
+        // every worker finished, on the same inputs and with the same partitioning
+        Marker first = null;
+        for (int index = 0; index < workers; index++) {
+            File file = marker(index);
+            if (!file.exists())
+                throw new IOException("worker " + index + " of " + workers + " has not finished: no " + file);
+            Marker marker = Marker.read(file);
+            if (marker.worker != index || marker.workers != workers || marker.partitions != partitions)
+                throw new IOException(file + ": worker " + marker.worker + " of " + marker.workers + " with "
+                        + marker.partitions + " partitions, expected " + index + " of " + workers + " with " + partitions);
+            if (first == null)
+                first = marker;
+            else if (first.topDomains != marker.topDomains || first.domainMinCount != marker.domainMinCount)
+                throw new IOException("workers 0 and " + index + " have a different email analysis: top "
+                        + first.topDomains + " domains from " + first.domainMinCount + ", top " + marker.topDomains
+                        + " from " + marker.domainMinCount);
+            else if (!first.names.equals(marker.names) || !first.sizes.equals(marker.sizes))
+                throw new IOException("workers 0 and " + index + " did not process the same inputs: "
+                        + first.names + " " + first.sizes + ", " + marker.names + " " + marker.sizes);
+        }
+        topDomains = first.topDomains;
+        domainMinCount = first.domainMinCount;
+    }
+
+    public void run(List<File> inputs, File words, File rules, int threads, boolean weighted, List<String> jvmOptions)
+            throws IOException {
+        // launches the workers as local JVMs, waits for them and reduces
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>(workers);
+        try {
+            for (int index = 0; index < workers; index++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.addAll(jvmOptions);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(PartitionedRun.class.getName());
+                command.add("-threads");
+                command.add(Integer.toString(threads));
+                if (weighted)
+                    command.add("-weighted");
+                command.add("worker");
+                command.add(dir.getPath());
+                command.add(Integer.toString(workers));
+                command.add(Integer.toString(partitions));
+                command.add(Integer.toString(index));
+                for (File input : inputs)
+                    command.add(input.getPath());
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            for (int index = 0; index < workers; index++) {
+                int status = processes.get(index).waitFor();
+                if (status != 0)
+                    throw new IOException("worker " + index + " failed with exit status " + status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (Process process : processes)
+                process.destroy();
+        }
+        reduce(words, rules, threads);
+    }
+
+    private File marker(int index) {
+        return new File(dir, "worker-" + index + ".done");
+    }
+
+    private File part(String name, int partition, int index) {
+        return new File(dir, name + "-" + partition + "." + index + ".part");
+    }
+
+    private static class Marker {
+        int worker, workers, partitions;
+        int topDomains;
+        long domainMinCount;
+        final List<String> names = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+
+        void write(File file) throws IOException {
+            try (FileOutputStream stream = new FileOutputStream(file)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(worker);
+                out.writeInt(workers);
+                out.writeInt(partitions);
+                out.writeInt(topDomains);
+                out.writeLong(domainMinCount);
+                out.writeInt(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    out.writeUTF(names.get(i));
+                    out.writeLong(sizes.get(i));
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+        }
+
+        static Marker read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException(file + " is not a worker marker");
+                int version = in.readInt();
+                if (version != VERSION)
+                    throw new IOException(file + ": unsupported marker version " + version);
+                Marker marker = new Marker();
+                marker.worker = in.readInt();
+                marker.workers = in.readInt();
+                marker.partitions = in.readInt();
+                marker.topDomains = in.readInt();
+                marker.domainMinCount = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    marker.names.add(in.readUTF());
+                    marker.sizes.add(in.readLong());
+                }
+                return marker;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = 1;
+        boolean weighted = false;
+        List<String> jvmOptions = new ArrayList<>();
+        int a = 0;
+        for (; a < args.length && args[a].startsWith("-"); a++) {
+            if (args[a].equals("-threads") && a + 1 < args.length)
+                threads = Integer.parseInt(args[++a]);
+            else if (args[a].equals("-weighted"))
+                weighted = true;
+            else if (args[a].startsWith("-J"))
+                jvmOptions.add(args[a].substring(2));
+            else
+                throw new IllegalArgumentException("unknown option " + args[a]);
+        }
+        String command = a < args.length ? args[a++] : "";
+        switch (command) {
+            case "run": {
+                PartitionedRun run = new PartitionedRun(new File(args[a]), Integer.parseInt(args[a + 1]), Integer.parseInt(args[a + 2]));
+                run.run(files(args, a + 5), new File(args[a + 3]), new File(args[a + 4]), threads, weighted, jvmOptions);
+                break;
+            }
+            case "worker": {
+                PartitionedRun run = new PartitionedRun(new File(args[a]), Integer.parseInt(args[a + 1]), Integer.parseInt(args[a + 2]));
+                int index = Integer.parseInt(args[a + 3]);
+                if (threads > 1)
+                    run.work(index, files(args, a + 4), new ParallelTransformer(threads), weighted);
+                else
+                    run.work(index, files(args, a + 4), new Transformer(), weighted);
+                break;
+            }
+            case "reduce": {
+                open(new File(args[a])).reduce(new File(args[a + 1]), new File(args[a + 2]), threads);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown command '" + command + "': run, worker or reduce");
+        }
+    }
+
+    private static List<File> files(String[] args, int from) {
+        List<File> files = new ArrayList<>();
+        for (int i = from; i < args.length; i++)
+            files.add(new File(args[i]));
+        return files;
+    }
+}
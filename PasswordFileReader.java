@@ -0,0 +1,270 @@
+package it.unive.secgroup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class PasswordFileReader implements Closeable {
+
+    // the file is mapped in windows: a single MappedByteBuffer cannot exceed 2GB
+    private static final long WINDOW = 1L << 28;
+    private static final byte[] HEX_PREFIX = {'$', 'H', 'E', 'X', '['};
+
+    private final FileChannel channel;
+    private final long size;
+
+    public interface LineConsumer {
+        // chars[off, off + len) holds the decoded password; the buffer is reused for the next line
+        void accept(char[] chars, int off, int len);
+    }
+
+    public interface WeightedConsumer {
+        // as LineConsumer, for count:password lines: count is the multiplicity of the password
+        void accept(char[] chars, int off, int len, long count);
+    }
+
+    public PasswordFileReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long[] split(int parts) throws IOException {
+        return split(0, size, parts);
+    }
+
+    public long[] split(long start, long end, int parts) throws IOException {
+        // returns parts + 1 offsets from start to end, each one at the beginning of a line
+        // (start must be at the beginning of a line)
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+        bounds[parts] = end;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < parts; i++) {
+            long pos = Math.max(bounds[i - 1], start + (end - start) / parts * i);
+            bounds[i] = Math.min(end, pos == 0 ? 0 : nextLine(probe, pos - 1));
+        }
+        return bounds;
+    }
+
+    public long lineStart(long pos) throws IOException {
+        // the first line beginning at or after pos
+        if (pos <= 0)
+            return 0;
+        return pos >= size ? size : nextLine(ByteBuffer.allocate(4096), pos - 1);
+    }
+
+    private long nextLine(ByteBuffer probe, long pos) throws IOException {
+        while (pos < size) {
+            probe.clear();
+            int n = channel.read(probe, pos);
+            if (n <= 0)
+                break;
+            for (int i = 0; i < n; i++)
+                if (probe.get(i) == '\n')
+                    return pos + i + 1;
+            pos += n;
+        }
+        return size;
+    }
+
+    public long read(LineConsumer consumer) throws IOException {
+        return read(0, size, consumer);
+    }
+
+    public long read(long start, long end, LineConsumer consumer) throws IOException {
+        // reads every line starting in [start, end); start must be at the beginning of a line.
+        // the scratch buffers are local, so different ranges can be read concurrently
+        return read(start, end, new Decoder(consumer, null));
+    }
+
+    public long readWeighted(WeightedConsumer consumer) throws IOException {
+        return readWeighted(0, size, consumer);
+    }
+
+    public long readWeighted(long start, long end, WeightedConsumer consumer) throws IOException {
+        // as read, for password lists with counts (leaks, potfile statistics): count:password lines, or
+        // the "  count password" lines of uniq -c. the password is taken as is after the first separator
+        // (it may contain ':'), $HEX[...] included; a line without a count is a password seen once.
+        // lines with a zero count are skipped
+        return read(start, end, new Decoder(null, consumer));
+    }
+
+    private long read(long start, long end, Decoder decoder) throws IOException {
+        long lines = 0;
+        long pos = start;
+        while (pos < end) {
+            long length = Math.min(WINDOW, size - pos);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            int limit = (int) length;
+            int lineStart = 0;
+            int i = 0;
+            while (i < limit && pos + lineStart < end) {
+                if (buffer.get(i) == '\n') {
+                    if (decoder.decode(buffer, lineStart, i))
+                        lines++;
+                    lineStart = i + 1;
+                }
+                i++;
+            }
+            if (pos + length == size && lineStart < limit && pos + lineStart < end) {
+                // last line without a trailing newline
+                if (decoder.decode(buffer, lineStart, limit))
+                    lines++;
+                lineStart = limit;
+            }
+            if (lineStart == 0 && pos + lineStart < end)
+                throw new IOException("line longer than " + WINDOW + " bytes at offset " + pos);
+            pos += lineStart;
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class Decoder {
+        private final LineConsumer consumer;
+        private final WeightedConsumer weighted;
+        private byte[] bytes = new byte[256];
+        private byte[] hex = new byte[128];
+        private char[] chars = new char[256];
+
+        Decoder(LineConsumer consumer, WeightedConsumer weighted) {
+            this.consumer = consumer;
+            this.weighted = weighted;
+        }
+
+        boolean decode(ByteBuffer buffer, int from, int to) {
+            if (to > from && buffer.get(to - 1) == '\r')
+                to--;
+            long count = 1;
+            if (weighted != null) {
+                // leading blanks, at most 18 digits (no overflow) and a ':' or a blank
+                int p = from;
+                while (p < to && buffer.get(p) == ' ')
+                    p++;
+                int digits = p;
+                long n = 0;
+                while (p < to && p - digits < 18 && buffer.get(p) >= '0' && buffer.get(p) <= '9')
+                    n = n * 10 + buffer.get(p++) - '0';
+                if (p > digits && p < to && (buffer.get(p) == ':' || buffer.get(p) == ' ')) {
+                    if (n == 0)
+                        return false;
+                    count = n;
+                    from = p + 1;
+                }
+            }
+            int length = to - from;
+            if (length == 0)
+                return false;
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            buffer.get(from, bytes, 0, length);
+
+            byte[] source = bytes;
+            if (isHex(bytes, length)) {
+                // $HEX[...] entries carry the raw bytes of the password
+                length = unhex(bytes, length);
+                source = hex;
+            }
+            if (chars.length < length)
+                chars = new char[Math.max(length, chars.length * 2)];
+            int n = decodeUtf8(source, length, chars);
+            if (n < 0)
+                n = decodeLatin1(source, length, chars);
+            if (n == 0)
+                return false;
+            if (weighted != null)
+                weighted.accept(chars, 0, n, count);
+            else
+                consumer.accept(chars, 0, n);
+            return true;
+        }
+
+        private boolean isHex(byte[] line, int length) {
+            if (length < HEX_PREFIX.length + 1 || line[length - 1] != ']' || (length - HEX_PREFIX.length - 1) % 2 != 0)
+                return false;
+            for (int i = 0; i < HEX_PREFIX.length; i++)
+                if (line[i] != HEX_PREFIX[i])
+                    return false;
+            for (int i = HEX_PREFIX.length; i < length - 1; i++)
+                if (hexValue(line[i]) < 0)
+                    return false;
+            return true;
+        }
+
+        private int unhex(byte[] line, int length) {
+            int n = (length - HEX_PREFIX.length - 1) / 2;
+            if (hex.length < n)
+                hex = new byte[Math.max(n, hex.length * 2)];
+            for (int i = 0; i < n; i++) {
+                int p = HEX_PREFIX.length + i * 2;
+                hex[i] = (byte) (hexValue(line[p]) << 4 | hexValue(line[p + 1]));
+            }
+            return n;
+        }
+
+        private static int hexValue(byte b) {
+            if (b >= '0' && b <= '9') return b - '0';
+            if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+            if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+            return -1;
+        }
+
+        private static int decodeLatin1(byte[] source, int length, char[] chars) {
+            for (int i = 0; i < length; i++)
+                chars[i] = (char) (source[i] & 0xFF);
+            return length;
+        }
+
+        private static int decodeUtf8(byte[] source, int length, char[] chars) {
+            // returns the number of chars, or -1 if the bytes are not valid UTF-8 (e.g. Latin-1 entries of rockyou).
+            // a valid UTF-8 sequence never produces more chars than bytes
+            int n = 0;
+            int i = 0;
+            while (i < length) {
+                int b = source[i];
+                if (b >= 0) {
+                    chars[n++] = (char) b;
+                    i++;
+                    continue;
+                }
+                int cp, extra;
+                if      ((b & 0xE0) == 0xC0) { cp = b & 0x1F; extra = 1; }
+                else if ((b & 0xF0) == 0xE0) { cp = b & 0x0F; extra = 2; }
+                else if ((b & 0xF8) == 0xF0) { cp = b & 0x07; extra = 3; }
+                else return -1;
+                if (i + extra >= length)
+                    return -1;
+                for (int k = 1; k <= extra; k++) {
+                    int c = source[i + k];
+                    if ((c & 0xC0) != 0x80)
+                        return -1;
+                    cp = cp << 6 | c & 0x3F;
+                }
+                // reject overlong forms, surrogates and out of range code points
+                if (extra == 1 && cp < 0x80 || extra == 2 && cp < 0x800 || extra == 3 && cp < 0x10000
+                        || cp > 0x10FFFF || cp >= 0xD800 && cp <= 0xDFFF)
+                    return -1;
+                if (cp >= 0x10000) {
+                    chars[n++] = Character.highSurrogate(cp);
+                    chars[n++] = Character.lowSurrogate(cp);
+                } else {
+                    chars[n++] = (char) cp;
+                }
+                i += extra + 1;
+            }
+            return n;
+        }
+    }
+}
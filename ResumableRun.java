@@ -0,0 +1,241 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class ResumableRun {
+
+    // processes password files with periodic checkpoints: every `interval` bytes of input,
+    // the counters and the offset reached in each input are saved in the checkpoint file.
+    // a run that dies resumes from the last checkpoint; files already processed are skipped,
+    // so new leaks can be added to a previous state without reprocessing the old ones.
+    //
+    // checkpoint format (big endian):
+    //   [magic][version][inputs: count, then (path length, path chars, size, offset) each]
+    //   [words counter][rules counter], as dumped by CompactCounter.save
+    //   [email analysis: 0 or 1][domains counter, if 1]
+    // the file is mapped when loaded: counters are bulk copied, not parsed.
+    // the debug log is not part of the state: rows of a resumed range are logged again.
+    // the state of segmentation, coverage tracking and verification is not saved either: the
+    // transformers with those modes are rejected
+
+    private static final int MAGIC = 0x524B4350; // RKCP
+    // 2: rules are keyed by their op-code encoding (RuleBuilder)
+    // 3: the domains of the email analysis
+    private static final int VERSION = 3;
+
+    private final Transformer transformer;
+    private final ParallelTransformer parallel;
+    private final File checkpoint;
+    private final long interval;
+    // canonical path -> {size, offset reached}
+    private final Map<String, long[]> inputs = new LinkedHashMap<>();
+
+    public ResumableRun(Transformer transformer, File checkpoint, long interval) throws IOException {
+        this(transformer, null, checkpoint, interval);
+    }
+
+    public ResumableRun(ParallelTransformer transformer, File checkpoint, long interval) throws IOException {
+        this(transformer.result(), transformer, checkpoint, interval);
+    }
+
+    private ResumableRun(Transformer transformer, ParallelTransformer parallel, File checkpoint, long interval) throws IOException {
+        if (!transformer.isExact())
+            throw new IllegalStateException("checkpoints need exact in-memory counters (no spill nor approximate mode)");
+        if (transformer.getUnsavedState() != null)
+            throw new IllegalStateException("checkpoints do not save the state of " + transformer.getUnsavedState());
+        if (interval < 1)
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        this.transformer = transformer;
+        this.parallel = parallel;
+        this.checkpoint = checkpoint;
+        this.interval = interval;
+        if (checkpoint.exists()) {
+            // resume
+            CompactCounter[] counters = load(checkpoint, inputs);
+            transformer.restore(counters[0], counters[1]);
+            addDomains(checkpoint, counters[2]);
+        }
+    }
+
+    public long offset(File input) throws IOException {
+        // bytes of input already counted
+        long[] state = inputs.get(input.getCanonicalPath());
+        return state == null ? 0 : state[1];
+    }
+
+    public boolean isDone(File input) throws IOException {
+        long[] state = inputs.get(input.getCanonicalPath());
+        return state != null && state[1] == state[0];
+    }
+
+    public void process(File input) throws IOException {
+        String path = input.getCanonicalPath();
+        try (PasswordFileReader reader = new PasswordFileReader(input)) {
+            long[] state = inputs.get(path);
+            if (state == null) {
+                state = new long[] {reader.size(), 0};
+                inputs.put(path, state);
+            } else if (state[0] != reader.size()) {
+                throw new IllegalStateException(path + " changed since the checkpoint: " + reader.size() + " bytes, were " + state[0]);
+            }
+            PasswordFileReader.LineConsumer consumer = new PasswordFileReader.LineConsumer() {
+                @Override
+                public void accept(char[] chars, int off, int len) {
+                    transformer.transform(chars, off, len);
+                }
+            };
+            while (state[1] < state[0]) {
+                long end = reader.lineStart(state[1] + interval);
+                if (parallel != null)
+                    parallel.transform(input, state[1], end);
+                else
+                    reader.read(state[1], end, consumer);
+                state[1] = end;
+                save();
+            }
+        }
+    }
+
+    public void merge(File other) throws IOException {
+        // adds a checkpoint of another run (on different inputs) to this one
+        Map<String, long[]> otherInputs = new LinkedHashMap<>();
+        CompactCounter[] counters = load(other, otherInputs);
+        for (String path : otherInputs.keySet())
+            if (inputs.containsKey(path))
+                throw new IllegalStateException(path + " is in both checkpoints: it would be counted twice");
+        inputs.putAll(otherInputs);
+        transformer.getWordCounter().addAll(counters[0]);
+        transformer.getRuleCounter().addAll(counters[1]);
+        addDomains(other, counters[2]);
+        save();
+    }
+
+    public void save() throws IOException {
+        // written aside and renamed, so that a crash never leaves a truncated checkpoint
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(inputs.size());
+            for (Map.Entry<String, long[]> input : inputs.entrySet()) {
+                out.writeInt(input.getKey().length());
+                out.writeChars(input.getKey());
+                out.writeLong(input.getValue()[0]);
+                out.writeLong(input.getValue()[1]);
+            }
+            transformer.getWordCounter().save(out);
+            transformer.getRuleCounter().save(out);
+            EmailAnalyzer emails = transformer.getEmailAnalyzer();
+            out.writeInt(emails != null ? 1 : 0);
+            if (emails != null)
+                emails.toCounter().save(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void addDomains(File file, CompactCounter domains) {
+        // the domains counted before the checkpoint: both or neither must have the email analysis
+        EmailAnalyzer emails = transformer.getEmailAnalyzer();
+        if ((domains != null) != (emails != null))
+            throw new IllegalStateException(file + (emails != null ? " has no email analysis" : " has an email analysis: see setEmailAnalysis"));
+        if (emails != null)
+            emails.addAll(domains);
+    }
+
+    private static CompactCounter[] load(File file, Map<String, long[]> inputs) throws IOException {
+        try (MappedInput in = new MappedInput(file)) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a checkpoint");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(file + ": unsupported checkpoint version " + version);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                char[] path = new char[in.readInt()];
+                for (int c = 0; c < path.length; c++)
+                    path[c] = in.readChar();
+                inputs.put(new String(path), new long[] {in.readLong(), in.readLong()});
+            }
+            CompactCounter words = CompactCounter.load(in);
+            CompactCounter rules = CompactCounter.load(in);
+            return new CompactCounter[] {words, rules, in.readInt() != 0 ? CompactCounter.load(in) : null};
+        }
+    }
+
+    static class MappedInput implements Closeable {
+        // sequential reads over a file mapped in windows (a single mapping cannot exceed 2GB)
+        private static final long WINDOW = 1L << 30;
+
+        private final FileChannel channel;
+        private final long size;
+        private long base;
+        private MappedByteBuffer window;
+
+        MappedInput(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            size = channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            base = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        }
+
+        private ByteBuffer need(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                long position = base + window.position();
+                if (size - position < bytes)
+                    throw new EOFException("truncated checkpoint");
+                map(position);
+            }
+            return window;
+        }
+
+        int readInt() throws IOException {
+            return need(4).getInt();
+        }
+
+        long readLong() throws IOException {
+            return need(8).getLong();
+        }
+
+        char readChar() throws IOException {
+            return need(2).getChar();
+        }
+
+        void readBytes(byte[] bytes, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, 1 << 20);
+                need(n).get(bytes, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void readInts(int[] ints) throws IOException {
+            for (int i = 0; i < ints.length; ) {
+                int n = Math.min(ints.length - i, 1 << 18);
+                ByteBuffer buffer = need(n << 2);
+                buffer.asIntBuffer().get(ints, i, n);
+                buffer.position(buffer.position() + (n << 2));
+                i += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
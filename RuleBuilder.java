@@ -0,0 +1,269 @@
+package it.unive.secgroup;
+
+import java.util.Arrays;
+
+public class RuleBuilder {
+
+    // a hashcat rule as a compact op-code sequence: every function is its command char followed by
+    // its arguments, without separators (positions are kept as their hashcat char, the count of p
+    // as decimal digits, which no command char can be mistaken for).
+    // rules are built, hashed and counted in this form; the hashcat text is rendered for the output only.
+    //
+    // rendering reproduces the text the rules were built as: every function but ^ and $ followed by
+    // a space, then the whole trimmed, keeping a trailing space after "  ", "$ " or "^ ".
+    // when the trimming cuts the arguments of the last function (control chars at the end of a pwd),
+    // the rule is kept as RAW + its text instead: encodings and texts stay one to one
+
+    static final char RAW = 0;
+
+    // the key format of the rule counters
+    public static final CompactCounter.KeyFormat FORMAT = new CompactCounter.KeyFormat() {
+        @Override
+        public String format(char[] key, int off, int length) {
+            return render(key, off, length);
+        }
+
+        @Override
+        public String parse(CharSequence text) {
+            return encode(text);
+        }
+    };
+
+    private char[] ops = new char[64];
+    private int length;
+    private int last;
+    private final StringBuilder scratch = new StringBuilder(32);
+
+    public void clear() {
+        length = 0;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char[] ops() {
+        // the encoded rule is ops()[0, length())
+        return ops;
+    }
+
+    public RuleBuilder prepend(char c) {
+        return op('^').put(c);
+    }
+
+    public RuleBuilder append(char c) {
+        return op('$').put(c);
+    }
+
+    public RuleBuilder insert(int position, char c) {
+        return op('i').position(position).put(c);
+    }
+
+    public RuleBuilder toggle(int position) {
+        return op('T').position(position);
+    }
+
+    public RuleBuilder toggleAll() {
+        return op('t');
+    }
+
+    public RuleBuilder reflect() {
+        return op('f');
+    }
+
+    public RuleBuilder duplicate(int times) {
+        op('p');
+        String digits = Integer.toString(times);
+        for (int i = 0; i < digits.length(); i++)
+            put(digits.charAt(i));
+        return this;
+    }
+
+    public RuleBuilder memorize() {
+        return op('M');
+    }
+
+    public RuleBuilder insertMemory(int from, int count, int position) {
+        // X: inserts count chars of the memorized word, starting at from, at position
+        return op('X').position(from).position(count).position(position);
+    }
+
+    public RuleBuilder overwrite(int position, char c) {
+        return op('o').position(position).put(c);
+    }
+
+    public RuleBuilder replace(char from, char to) {
+        return op('s').put(from).put(to);
+    }
+
+    private RuleBuilder op(char command) {
+        last = length;
+        return put(command);
+    }
+
+    private RuleBuilder position(int i) {
+        // hashcat notation: 0-9, then A for 10, B for 11...
+        return put(i < 10 ? (char) ('0' + i) : (char) (i - 10 + 65));
+    }
+
+    private RuleBuilder put(char c) {
+        if (length == ops.length)
+            ops = Arrays.copyOf(ops, length * 2);
+        ops[length++] = c;
+        return this;
+    }
+
+    public RuleBuilder finish(boolean trim) {
+        // seals the rule: trim tells whether its text is trimmed (see above) or taken as built.
+        // only the last function can be affected, so only that one is rendered to check
+        if (length == 0)
+            return this;
+        StringBuilder text = scratch;
+        text.setLength(0);
+        int end = renderFunction(ops, last, length, text);
+        boolean separated = ops[last] != '^' && ops[last] != '$';
+        int built = text.length();
+        trim(text, 0);
+        // the rendering trims: it must give back the function, with or without its separator
+        boolean lossless = end == length && (trim
+                ? text.length() == built || separated && text.length() == built - 1
+                : text.length() == built && !separated);
+        if (!lossless) {
+            text.setLength(0);
+            text.append(RAW);
+            appendCommands(ops, 0, length, text);
+            if (trim)
+                trim(text, 1);
+            length = 0;
+            for (int i = 0; i < text.length(); i++)
+                put(text.charAt(i));
+        }
+        return this;
+    }
+
+    public void appendCommands(StringBuilder out) {
+        // the functions as built, each one followed by its separator (no trimming)
+        if (length > 0 && ops[0] == RAW)
+            out.append(ops, 1, length - 1);
+        else
+            appendCommands(ops, 0, length, out);
+    }
+
+    public String render() {
+        return render(ops, 0, length);
+    }
+
+    public void render(StringBuilder out) {
+        render(ops, 0, length, out);
+    }
+
+    public static String render(char[] ops, int off, int length) {
+        StringBuilder out = new StringBuilder(length + 8);
+        render(ops, off, length, out);
+        return out.toString();
+    }
+
+    public static void render(char[] ops, int off, int length, StringBuilder out) {
+        if (length == 0) {
+            out.append(':');
+        } else if (ops[off] == RAW) {
+            out.append(ops, off + 1, length - 1);
+        } else {
+            int start = out.length();
+            appendCommands(ops, off, off + length, out);
+            trim(out, start);
+        }
+    }
+
+    private static void appendCommands(char[] ops, int from, int to, StringBuilder out) {
+        while (from < to)
+            from = renderFunction(ops, from, to, out);
+    }
+
+    private static int renderFunction(char[] ops, int i, int to, StringBuilder out) {
+        // renders the function at i, returns the position of the next one
+        char command = ops[i++];
+        out.append(command);
+        int args;
+        switch (command) {
+            case '^': case '$':
+                if (i < to)
+                    out.append(ops[i++]);
+                return i;
+            case 'p':
+                while (i < to && ops[i] >= '0' && ops[i] <= '9')
+                    out.append(ops[i++]);
+                out.append(' ');
+                return i;
+            case 'T': args = 1; break;
+            case 'i': case 'o': case 's': args = 2; break;
+            case 'X': args = 3; break;
+            default: args = 0;
+        }
+        for (int a = 0; a < args && i < to; a++)
+            out.append(ops[i++]);
+        out.append(' ');
+        return i;
+    }
+
+    private static void trim(StringBuilder text, int from) {
+        // the former trimming of the rule text in text[from, ...)
+        int length = text.length();
+        boolean keepSpace = length - from >= 2 && text.charAt(length - 1) == ' '
+                && (text.charAt(length - 2) == ' ' || text.charAt(length - 2) == '$' || text.charAt(length - 2) == '^');
+        int s = from;
+        int e = length;
+        while (s < e && text.charAt(s) <= ' ') s++;
+        while (s < e && text.charAt(e - 1) <= ' ') e--;
+        text.setLength(e);
+        if (keepSpace)
+            text.append(' ');
+        if (s > from)
+            text.delete(from, s);
+    }
+
+    public static String encode(CharSequence text) {
+        // the encoding of a rendered rule (used to look up counters by hashcat text)
+        if (text.length() == 1 && text.charAt(0) == ':')
+            return "";
+        RuleBuilder rule = new RuleBuilder();
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            char command = text.charAt(i++);
+            int args;
+            switch (command) {
+                case '^': case '$': case 'T': args = 1; break;
+                case 'i': case 'o': case 's': args = 2; break;
+                case 'X': args = 3; break;
+                case 'p': case 't': case 'f': case 'M': case 'd': args = 0; break;
+                default: return raw(text);
+            }
+            rule.op(command);
+            if (command == 'p') {
+                if (i == n || text.charAt(i) < '0' || text.charAt(i) > '9')
+                    return raw(text);
+                while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9')
+                    rule.put(text.charAt(i++));
+            }
+            if (i + args > n)
+                // a function cut by the trimming
+                return raw(text);
+            for (int a = 0; a < args; a++)
+                rule.put(text.charAt(i++));
+            if (command != '^' && command != '$' && i < n && text.charAt(i) == ' ')
+                i++;
+        }
+        rule.finish(true);
+        // what does not render back to the same text can only be a raw rule
+        return text.toString().equals(rule.render()) ? new String(rule.ops, 0, rule.length) : raw(text);
+    }
+
+    private static String raw(CharSequence text) {
+        return RAW + text.toString();
+    }
+}
@@ -0,0 +1,326 @@
+package it.unive.secgroup;
+
+import java.util.*;
+
+public class RuleCanonicalizer {
+
+    // post-processing of the rule counter: every rule is parsed, validated against the hashcat
+    // rule grammar and limits, and rewritten in a canonical form; rules with the same canonical
+    // form are merged, invalid ones are dropped (and counted by reason).
+    // rewritings, all valid for any input word:
+    //   ':' and p0 are dropped, p1 becomes d, pN with N > 9 gets its hashcat position char
+    //   iNc right after at least N ^ functions becomes a ^c before the last N of them (i0c -> ^c)
+    //   t t and T T on the same position (with only toggles in between) cancel out
+    //   consecutive toggles are sorted by position, in runs of ^ and $ all the ^ come first
+    //   sxx, and sxy after an sxz of the same run, do nothing and are dropped
+    //   M with no X after it is dropped
+
+    // hashcat limits: positions are 0-9 A-Z, a rule holds at most 31 functions on the GPU
+    // and 255 chars; memory functions (M, X) are not available in the OpenCL kernels
+    public static final int MAX_POSITION = 35;
+    public static final int MAX_FUNCTIONS = 31;
+    public static final int MAX_LENGTH = 255;
+
+    private final boolean openCL;
+    private final Map<String, Long> rejected = new TreeMap<>();
+    private long rules;
+    private long rewritten;
+    private long merged;
+
+    public RuleCanonicalizer(boolean openCL) {
+        // openCL rejects the functions the GPU kernels do not support (see Transformer.enhancedCopy)
+        this.openCL = openCL;
+    }
+
+    public CompactCounter apply(CompactCounter counter) {
+        // a new counter of the canonical rules
+        CompactCounter canonical = new CompactCounter(counter.size());
+        canonical.setKeyFormat(RuleBuilder.FORMAT);
+        char[] key = new char[64];
+        for (CompactCounter.Cursor cursor = counter.cursor(); cursor.next(); ) {
+            int length = cursor.length();
+            if (key.length < length)
+                key = new char[Math.max(length, key.length * 2)];
+            cursor.chars(key);
+            rules++;
+            String canonicalKey = canonicalize(key, length);
+            if (canonicalKey == null)
+                continue;
+            if (!canonicalKey.contentEquals(new String(key, 0, length)))
+                rewritten++;
+            if (canonical.add(canonicalKey.toCharArray(), 0, canonicalKey.length(), cursor.count()) != cursor.count())
+                merged++;
+        }
+        return canonical;
+    }
+
+    public String canonicalize(String rule) {
+        // the canonical hashcat text of a rule, or null if it is not valid
+        String key = RuleBuilder.encode(rule);
+        String canonical = canonicalize(key.toCharArray(), key.length());
+        return canonical == null ? null : RuleBuilder.render(canonical.toCharArray(), 0, canonical.length());
+    }
+
+    String canonicalize(char[] key, int length) {
+        // the encoding of the canonical form, or null if the rule is not valid
+        List<char[]> functions = length > 0 && key[0] == RuleBuilder.RAW
+                ? parse(key, 1, length)
+                : decode(key, 0, length);
+        if (functions == null)
+            return null;
+        rewrite(functions);
+        String invalid = validate(functions);
+        if (invalid != null) {
+            reject(invalid);
+            return null;
+        }
+        // the hashcat text, functions separated as the builder does: encode keeps it as raw
+        // whenever the rendering would not give it back (args made of blanks at the ends)
+        StringBuilder text = new StringBuilder(length + 16);
+        boolean separator = false;
+        for (char[] function : functions) {
+            if (separator)
+                text.append(' ');
+            separator = function[0] != '^' && function[0] != '$';
+            text.append(function[0]);
+            for (int a = 1; a < function.length; a++)
+                text.append(isPosition(function[0], a) ? position(function[a]) : function[a]);
+        }
+        if (text.length() == 0)
+            return "";
+        if (text.length() > MAX_LENGTH) {
+            reject("longer than " + MAX_LENGTH + " chars");
+            return null;
+        }
+        return RuleBuilder.encode(text);
+    }
+
+    public long getRules() {
+        return rules;
+    }
+
+    public long getRewritten() {
+        // rules whose canonical form differs
+        return rewritten;
+    }
+
+    public long getMerged() {
+        // rules merged into the count of another one
+        return merged;
+    }
+
+    public Map<String, Long> getRejected() {
+        // number of dropped rules by reason
+        return Collections.unmodifiableMap(rejected);
+    }
+
+    private void reject(String reason) {
+        Long count = rejected.get(reason);
+        rejected.put(reason, count == null ? 1 : count + 1);
+    }
+
+    // functions are char[]: the command, then its arguments (positions and counts as numbers)
+
+    private static int arity(char command) {
+        switch (command) {
+            case ':': case 'd': case 't': case 'f': case 'M': return 0;
+            case '^': case '$': case 'T': case 'p': return 1;
+            case 'i': case 'o': case 's': return 2;
+            case 'X': return 3;
+            default: return -1;
+        }
+    }
+
+    private static boolean isPosition(char command, int arg) {
+        return command == 'T' || command == 'p' || command == 'X' || (command == 'i' || command == 'o') && arg == 1;
+    }
+
+    private List<char[]> decode(char[] key, int from, int to) {
+        // the functions of an encoded rule (see RuleBuilder)
+        List<char[]> functions = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            char command = key[i++];
+            int arity = arity(command);
+            if (arity < 0) {
+                reject("unknown function");
+                return null;
+            }
+            char[] function = new char[arity + 1];
+            function[0] = command;
+            if (command == 'p') {
+                int times = 0;
+                while (i < to && key[i] >= '0' && key[i] <= '9' && times <= MAX_POSITION)
+                    times = times * 10 + key[i++] - '0';
+                function[1] = (char) Math.min(times, MAX_POSITION + 1);
+            } else {
+                if (i + arity > to) {
+                    reject("missing arguments");
+                    return null;
+                }
+                for (int a = 1; a <= arity; a++) {
+                    char arg = key[i++];
+                    function[a] = isPosition(command, a) ? (char) positionValue(arg) : arg;
+                }
+            }
+            functions.add(function);
+        }
+        return functions;
+    }
+
+    private List<char[]> parse(char[] text, int from, int to) {
+        // the functions of a rule in hashcat text (raw rules)
+        List<char[]> functions = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            char command = text[i++];
+            if (command == ' ')
+                continue;
+            int arity = arity(command);
+            if (arity < 0) {
+                reject("unknown function");
+                return null;
+            }
+            if (i + arity > to) {
+                reject("missing arguments");
+                return null;
+            }
+            char[] function = new char[arity + 1];
+            function[0] = command;
+            for (int a = 1; a <= arity; a++) {
+                char arg = text[i++];
+                function[a] = isPosition(command, a) ? (char) positionValue(arg) : arg;
+            }
+            functions.add(function);
+        }
+        return functions;
+    }
+
+    private static int positionValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 10;
+        return MAX_POSITION + 1;
+    }
+
+    private static char position(char value) {
+        return value < 10 ? (char) ('0' + value) : (char) ('A' + value - 10);
+    }
+
+    private static void rewrite(List<char[]> functions) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 0; k < functions.size(); k++) {
+                char[] f = functions.get(k);
+                if (f[0] == ':' || f[0] == 'p' && f[1] == 0) {
+                    functions.remove(k);
+                    changed = true;
+                    break;
+                }
+                if (f[0] == 'p' && f[1] == 1) {
+                    functions.set(k, new char[] {'d'});
+                    changed = true;
+                    break;
+                }
+                if (f[0] == 'i') {
+                    // the prefix built by the ^ right before is at least as long as the position
+                    int prepends = 0;
+                    while (prepends < k && functions.get(k - 1 - prepends)[0] == '^')
+                        prepends++;
+                    if (f[1] <= prepends) {
+                        functions.remove(k);
+                        functions.add(k - f[1], new char[] {'^', f[2]});
+                        changed = true;
+                        break;
+                    }
+                }
+                if (f[0] == 't' && k + 1 < functions.size() && functions.get(k + 1)[0] == 't') {
+                    functions.remove(k + 1);
+                    functions.remove(k);
+                    changed = true;
+                    break;
+                }
+                if (f[0] == 'T') {
+                    int j = k + 1;
+                    while (j < functions.size() && functions.get(j)[0] == 'T' && functions.get(j)[1] != f[1])
+                        j++;
+                    if (j < functions.size() && functions.get(j)[0] == 'T') {
+                        functions.remove(j);
+                        functions.remove(k);
+                        changed = true;
+                        break;
+                    }
+                }
+                if (f[0] == 's') {
+                    boolean noop = f[1] == f[2];
+                    for (int j = k - 1; !noop && j >= 0 && functions.get(j)[0] == 's'; j--) {
+                        if (functions.get(j)[2] == f[1])
+                            break;
+                        noop = functions.get(j)[1] == f[1];
+                    }
+                    if (noop) {
+                        functions.remove(k);
+                        changed = true;
+                        break;
+                    }
+                }
+                if (f[0] == 'M') {
+                    boolean used = false;
+                    for (int j = k + 1; j < functions.size() && !used; j++)
+                        used = functions.get(j)[0] == 'X';
+                    if (!used) {
+                        functions.remove(k);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        sortRuns(functions);
+    }
+
+    private static void sortRuns(List<char[]> functions) {
+        int k = 0;
+        while (k < functions.size()) {
+            char command = functions.get(k)[0];
+            int end = k + 1;
+            if (command == 'T') {
+                while (end < functions.size() && functions.get(end)[0] == 'T')
+                    end++;
+                Collections.sort(functions.subList(k, end), new Comparator<char[]>() {
+                    @Override
+                    public int compare(char[] a, char[] b) {
+                        return a[1] - b[1];
+                    }
+                });
+            } else if (command == '^' || command == '$') {
+                // prepending and appending commute: stable partition, ^ first
+                while (end < functions.size() && (functions.get(end)[0] == '^' || functions.get(end)[0] == '$'))
+                    end++;
+                Collections.sort(functions.subList(k, end), new Comparator<char[]>() {
+                    @Override
+                    public int compare(char[] a, char[] b) {
+                        return (a[0] == '^' ? 0 : 1) - (b[0] == '^' ? 0 : 1);
+                    }
+                });
+            }
+            k = end;
+        }
+    }
+
+    private String validate(List<char[]> functions) {
+        if (functions.size() > MAX_FUNCTIONS)
+            return "more than " + MAX_FUNCTIONS + " functions";
+        for (char[] f : functions) {
+            if (openCL && (f[0] == 'M' || f[0] == 'X'))
+                return "memory functions in OpenCL kernels";
+            for (int a = 1; a < f.length; a++) {
+                if (isPosition(f[0], a) && f[a] > MAX_POSITION)
+                    return "position out of range";
+                if (!isPosition(f[0], a) && (f[a] == '\n' || f[a] == '\r'))
+                    return "line break in an argument";
+            }
+        }
+        return null;
+    }
+}
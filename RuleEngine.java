@@ -0,0 +1,188 @@
+package it.unive.secgroup;
+
+public class RuleEngine {
+
+    // applies hashcat rules to words, as the hashcat kernels do, for the functions the Transformer emits
+    // (: d p f t T ^ $ i o s M X). rules are taken either as hashcat text or as RuleBuilder encodings
+    // (spaces between functions are skipped, a RAW encoding is its text): no parsing step, no allocation.
+    // like the kernels, a function that would go past MAX_LENGTH chars, or that refers to a position
+    // past the end of the word, leaves the word unchanged.
+    // words are chars, hashcat works on bytes: positions agree on ascii (single byte) passwords.
+    // not thread safe: one engine per thread
+
+    public static final int MAX_LENGTH = 255;
+
+    private char[] out = new char[MAX_LENGTH];
+    private char[] tmp = new char[MAX_LENGTH];
+    private final char[] memory = new char[MAX_LENGTH];
+
+    public char[] output() {
+        // the result of the last apply is output()[0, length)
+        return out;
+    }
+
+    public String apply(String rule, String word) {
+        char[] chars = rule.toCharArray();
+        int length = apply(chars, 0, chars.length, word.toCharArray(), 0, word.length());
+        return length < 0 ? null : new String(out, 0, length);
+    }
+
+    public int apply(char[] rule, int ruleOff, int ruleLen, char[] word, int off, int len) {
+        // applies rule[ruleOff, ruleOff + ruleLen) to word[off, off + len), the result goes in output().
+        // returns its length, or -1 if the rule is not valid (or the word is too long for hashcat)
+        if (len > MAX_LENGTH)
+            return -1;
+        char[] w = out;
+        System.arraycopy(word, off, w, 0, len);
+        int n = len;
+        int memoryLength = -1;
+        int i = ruleOff;
+        int end = ruleOff + ruleLen;
+        if (i < end && rule[i] == RuleBuilder.RAW)
+            i++;
+        while (i < end) {
+            char command = rule[i++];
+            switch (command) {
+                case ' ':
+                case ':':
+                    break;
+                case 'd':
+                    if (n + n <= MAX_LENGTH) {
+                        System.arraycopy(w, 0, w, n, n);
+                        n += n;
+                    }
+                    break;
+                case 'f':
+                    if (n + n <= MAX_LENGTH) {
+                        for (int k = 0; k < n; k++)
+                            w[n + k] = w[n - 1 - k];
+                        n += n;
+                    }
+                    break;
+                case 't':
+                    for (int k = 0; k < n; k++)
+                        w[k] = toggle(w[k]);
+                    break;
+                case 'M':
+                    System.arraycopy(w, 0, memory, 0, n);
+                    memoryLength = n;
+                    break;
+                case 'p': {
+                    if (i >= end) return -1;
+                    int times = position(rule[i++]);
+                    if (times < 0) return -1;
+                    if (n + n * times <= MAX_LENGTH) {
+                        for (int k = 1; k <= times; k++)
+                            System.arraycopy(w, 0, w, n * k, n);
+                        n += n * times;
+                    }
+                    break;
+                }
+                case 'T': {
+                    if (i >= end) return -1;
+                    int p = position(rule[i++]);
+                    if (p < 0) return -1;
+                    if (p < n)
+                        w[p] = toggle(w[p]);
+                    break;
+                }
+                case '^':
+                    if (i >= end) return -1;
+                    if (n < MAX_LENGTH) {
+                        System.arraycopy(w, 0, w, 1, n);
+                        w[0] = rule[i];
+                        n++;
+                    }
+                    i++;
+                    break;
+                case '$':
+                    if (i >= end) return -1;
+                    if (n < MAX_LENGTH)
+                        w[n++] = rule[i];
+                    i++;
+                    break;
+                case 'i': {
+                    if (i + 2 > end) return -1;
+                    int p = position(rule[i]);
+                    if (p < 0) return -1;
+                    if (p <= n && n < MAX_LENGTH) {
+                        System.arraycopy(w, p, w, p + 1, n - p);
+                        w[p] = rule[i + 1];
+                        n++;
+                    }
+                    i += 2;
+                    break;
+                }
+                case 'o': {
+                    if (i + 2 > end) return -1;
+                    int p = position(rule[i]);
+                    if (p < 0) return -1;
+                    if (p < n)
+                        w[p] = rule[i + 1];
+                    i += 2;
+                    break;
+                }
+                case 's': {
+                    if (i + 2 > end) return -1;
+                    char from = rule[i];
+                    char to = rule[i + 1];
+                    for (int k = 0; k < n; k++)
+                        if (w[k] == from)
+                            w[k] = to;
+                    i += 2;
+                    break;
+                }
+                case 'X': {
+                    if (i + 3 > end) return -1;
+                    int from = position(rule[i]);
+                    int count = position(rule[i + 1]);
+                    int p = position(rule[i + 2]);
+                    if (from < 0 || count < 0 || p < 0) return -1;
+                    if (from + count <= memoryLength && p <= n && n + count <= MAX_LENGTH) {
+                        char[] t = tmp;
+                        System.arraycopy(w, 0, t, 0, p);
+                        System.arraycopy(memory, from, t, p, count);
+                        System.arraycopy(w, p, t, p + count, n - p);
+                        tmp = w;
+                        w = t;
+                        n += count;
+                    }
+                    i += 3;
+                    break;
+                }
+                default:
+                    return -1;
+            }
+        }
+        if (w != out) {
+            tmp = out;
+            out = w;
+        }
+        return n;
+    }
+
+    public boolean reproduces(char[] rule, int ruleOff, int ruleLen, char[] word, int off, int len, char[] pwd, int pwdLength) {
+        // the rule turns word into pwd; a missing word (null) stands for any word: pwd must end with
+        // what the rule adds to the empty word
+        int n = apply(rule, ruleOff, ruleLen, word == null ? pwd : word, off, word == null ? 0 : len);
+        if (n < 0 || (word == null ? n > pwdLength : n != pwdLength))
+            return false;
+        for (int k = 0, p = pwdLength - n; k < n; k++, p++)
+            if (out[k] != pwd[p])
+                return false;
+        return true;
+    }
+
+    private static int position(char c) {
+        // hashcat notation: 0-9, then A for 10, B for 11...
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static char toggle(char c) {
+        if (c >= 'a' && c <= 'z') return (char) (c - 32);
+        if (c >= 'A' && c <= 'Z') return (char) (c + 32);
+        return c;
+    }
+}
@@ -0,0 +1,188 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RuleScorer {
+
+    // measures how good a ruleset is: every rule is applied (RuleEngine) to every word, and the
+    // candidates are looked up in a held-out set of passwords (not used to build words and rules).
+    // the rules are shared among the threads; the candidates are never turned into Strings, only
+    // the cracked pwds are. results, by rule: the held-out pwds it generates (hits) and the ones no
+    // rule before it generates (new), so that the coverage of every prefix of the ruleset is known
+
+    private final List<String> rules;
+    private final char[][] words;
+    private final CompactCounter heldOut = new CompactCounter();
+    private final int threads;
+    private long heldOutTotal;
+    private long[] hits;
+    private long[] news;
+    private long cracked;
+    private long applications;
+    private long invalid;
+
+    public RuleScorer(List<String> words, List<String> rules, int threads) {
+        // rules as hashcat text (e.g. Transformer.topRules)
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        this.rules = rules;
+        this.words = new char[words.size()][];
+        for (int i = 0; i < this.words.length; i++)
+            this.words[i] = words.get(i).toCharArray();
+        this.threads = threads;
+    }
+
+    public void addHeldOut(String pwd) {
+        heldOut.add(pwd, 1);
+        heldOutTotal++;
+    }
+
+    public void addHeldOut(File file) throws IOException {
+        // one password per line
+        try (PasswordFileReader reader = new PasswordFileReader(file)) {
+            reader.read(new PasswordFileReader.LineConsumer() {
+                @Override
+                public void accept(char[] chars, int off, int len) {
+                    heldOut.add(chars, off, len, 1);
+                    heldOutTotal++;
+                }
+            });
+        }
+    }
+
+    public void score() {
+        final List<Map<String, Integer>> partials = new ArrayList<>(threads);
+        final long[] hits = new long[rules.size()];
+        final AtomicInteger nextRule = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<>(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                final Map<String, Integer> partial = new HashMap<>();
+                partials.add(partial);
+                futures.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() {
+                        return score(nextRule, hits, partial);
+                    }
+                }));
+            }
+            applications = 0;
+            invalid = 0;
+            for (Future<long[]> future : futures) {
+                long[] counts = future.get();
+                applications += counts[0];
+                invalid += counts[1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        // every cracked pwd is new for the first rule that generates it
+        Map<String, Integer> first = new HashMap<>();
+        for (Map<String, Integer> partial : partials)
+            for (Map.Entry<String, Integer> e : partial.entrySet()) {
+                Integer rule = first.get(e.getKey());
+                if (rule == null || e.getValue() < rule)
+                    first.put(e.getKey(), e.getValue());
+            }
+        long[] news = new long[rules.size()];
+        cracked = 0;
+        for (Map.Entry<String, Integer> e : first.entrySet()) {
+            long count = heldOut.get(e.getKey());
+            news[e.getValue()] += count;
+            cracked += count;
+        }
+        this.hits = hits;
+        this.news = news;
+    }
+
+    private long[] score(AtomicInteger nextRule, long[] hits, Map<String, Integer> first) {
+        // scores the rules taken from nextRule: returns {applications, invalid rules}
+        RuleEngine engine = new RuleEngine();
+        char[] empty = new char[0];
+        long applications = 0;
+        long invalid = 0;
+        int r;
+        while ((r = nextRule.getAndIncrement()) < rules.size()) {
+            char[] rule = rules.get(r).toCharArray();
+            if (engine.apply(rule, 0, rule.length, empty, 0, 0) < 0) {
+                invalid++;
+                continue;
+            }
+            long ruleHits = 0;
+            for (char[] word : words) {
+                int n = engine.apply(rule, 0, rule.length, word, 0, word.length);
+                if (n < 0)
+                    continue;
+                long count = heldOut.get(engine.output(), 0, n);
+                if (count > 0) {
+                    ruleHits += count;
+                    String pwd = new String(engine.output(), 0, n);
+                    Integer known = first.get(pwd);
+                    if (known == null || r < known)
+                        first.put(pwd, r);
+                }
+            }
+            applications += words.length;
+            hits[r] = ruleHits;
+        }
+        return new long[] {applications, invalid};
+    }
+
+    public long getApplications() {
+        return applications;
+    }
+
+    public long getInvalidRules() {
+        // rules hashcat would not accept
+        return invalid;
+    }
+
+    public long getHeldOut() {
+        return heldOutTotal;
+    }
+
+    public long getCracked() {
+        // held-out pwds (with repetitions) generated by some word and rule
+        return cracked;
+    }
+
+    public double getCoverage() {
+        return heldOutTotal == 0 ? 0 : (double) cracked / heldOutTotal;
+    }
+
+    public long getHits(int rule) {
+        return hits[rule];
+    }
+
+    public long getNew(int rule) {
+        return news[rule];
+    }
+
+    public void writeScores(File file) throws IOException {
+        // rule, hits, new and cumulative coverage, in the order of the rules
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            long total = 0;
+            for (int r = 0; r < rules.size(); r++) {
+                total += news[r];
+                out.write(rules.get(r));
+                out.write('\t');
+                out.write(Long.toString(hits[r]));
+                out.write('\t');
+                out.write(Long.toString(news[r]));
+                out.write('\t');
+                out.write(String.format(Locale.ROOT, "%.6f", heldOutTotal == 0 ? 0 : (double) total / heldOutTotal));
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class SegmentAnalyzer {
+
+    // splits every pwd into runs of letters, digits and symbols (e.g. john|1987|!) and counts, each in
+    // its own table: the words (letter runs, as typed), the hashcat masks of the other runs (?d?d?d?d, ?s),
+    // the date/year tokens (digit runs that may be dates, e.g. 1987), the mask of the whole pwd (-a 3),
+    // and, for pwds made of one word plus a tail (head), the mask of the tail (head): the inputs of the
+    // hybrid attacks -a 6 (word + mask) and -a 7 (mask + word), which replace the literal $1$9$8$7$!
+    // appends with one mask per pattern.
+    // a single scan per pwd: runs, masks and the word are found in the same pass.
+    // hashcat masks only cover ascii: runs with other chars get no mask
+
+    private static final char ALPHA = 'a', NUMERIC = 'd', SYMBOL = 's';
+    private static final DateDetector ALL_DATES = new DateDetector(EnumSet.allOf(DateDetector.Format.class));
+
+    private final CompactCounter words = new CompactCounter();
+    private final CompactCounter fragments = new CompactCounter();
+    private final CompactCounter dates = new CompactCounter();
+    private final CompactCounter masks = new CompactCounter();
+    private final CompactCounter appendMasks = new CompactCounter();
+    private final CompactCounter prependMasks = new CompactCounter();
+    private final DateDetector dateDetector;
+    private char[] mask = new char[128];
+
+    public SegmentAnalyzer() {
+        this(ALL_DATES);
+    }
+
+    public SegmentAnalyzer(DateDetector dateDetector) {
+        this.dateDetector = dateDetector;
+    }
+
+    public void analyze(char[] pwd, int length) {
+        analyze(pwd, length, 1);
+    }
+
+    public void analyze(char[] pwd, int length, long count) {
+        // count: the multiplicity of pwd
+        if (mask.length < 2 * length)
+            mask = new char[Math.max(2 * length, 2 * mask.length)];
+        char[] mask = this.mask;
+        int words = 0;
+        int wordStart = 0, wordEnd = 0;
+        // the first and last chars out of the mask charsets (-1: none)
+        int firstUnmaskable = -1, lastUnmaskable = -1;
+        int runStart = 0;
+        char runType = 0;
+        boolean runMaskable = true;
+        for (int i = 0; i <= length; i++) {
+            char type = 0;
+            if (i < length) {
+                char c = pwd[i];
+                char charset;
+                if (c >= 'a' && c <= 'z') {
+                    type = ALPHA;
+                    charset = 'l';
+                } else if (c >= 'A' && c <= 'Z') {
+                    type = ALPHA;
+                    charset = 'u';
+                } else if (c >= '0' && c <= '9') {
+                    type = NUMERIC;
+                    charset = 'd';
+                } else {
+                    type = SYMBOL;
+                    // ?s: the printable ascii symbols, space included
+                    charset = c >= ' ' && c <= '~' ? 's' : 0;
+                }
+                if (charset == 0) {
+                    if (firstUnmaskable < 0)
+                        firstUnmaskable = i;
+                    lastUnmaskable = i;
+                }
+                mask[2 * i] = '?';
+                mask[2 * i + 1] = charset;
+                if (type == runType) {
+                    runMaskable &= charset != 0;
+                    continue;
+                }
+            }
+            // the run [runStart, i) ends here
+            if (i > 0) {
+                if (runType == ALPHA) {
+                    this.words.add(pwd, runStart, i - runStart, count);
+                    words++;
+                    wordStart = runStart;
+                    wordEnd = i;
+                } else {
+                    if (runMaskable)
+                        fragments.add(mask, 2 * runStart, 2 * (i - runStart), count);
+                    if (runType == NUMERIC && dateDetector.mayBeDate(pwd, runStart, i - runStart))
+                        dates.add(pwd, runStart, i - runStart, count);
+                }
+            }
+            runStart = i;
+            runType = type;
+            runMaskable = i == length || mask[2 * i + 1] != 0;
+        }
+        if (firstUnmaskable < 0 && length > 0)
+            masks.add(mask, 0, 2 * length, count);
+        if (words == 1) {
+            boolean maskableHead = firstUnmaskable < 0 || firstUnmaskable >= wordStart;
+            boolean maskableTail = lastUnmaskable < wordEnd;
+            if (wordStart == 0 && wordEnd < length && maskableTail)
+                appendMasks.add(mask, 2 * wordEnd, 2 * (length - wordEnd), count);
+            else if (wordStart > 0 && wordEnd == length && maskableHead)
+                prependMasks.add(mask, 0, 2 * wordStart, count);
+        }
+    }
+
+    public void merge(SegmentAnalyzer other) {
+        words.addAll(other.words);
+        fragments.addAll(other.fragments);
+        dates.addAll(other.dates);
+        masks.addAll(other.masks);
+        appendMasks.addAll(other.appendMasks);
+        prependMasks.addAll(other.prependMasks);
+    }
+
+    public Map<String, Integer> getWords() {
+        return words.asMap();
+    }
+
+    public Map<String, Integer> getFragments() {
+        return fragments.asMap();
+    }
+
+    public Map<String, Integer> getDates() {
+        return dates.asMap();
+    }
+
+    public Map<String, Integer> getMasks() {
+        return masks.asMap();
+    }
+
+    public Map<String, Integer> getAppendMasks() {
+        // -a 6: word + mask
+        return appendMasks.asMap();
+    }
+
+    public Map<String, Integer> getPrependMasks() {
+        // -a 7: mask + word
+        return prependMasks.asMap();
+    }
+
+    public void write(File dir) throws IOException {
+        // every table by decreasing count: words.txt and dates.txt are wordlists,
+        // the .hcmask files are mask files for hashcat -a 3 (masks), -a 6 (append) and -a 7 (prepend)
+        write(words, new File(dir, "words.txt"));
+        write(dates, new File(dir, "dates.txt"));
+        write(fragments, new File(dir, "fragments.hcmask"));
+        write(masks, new File(dir, "masks.hcmask"));
+        write(appendMasks, new File(dir, "append.hcmask"));
+        write(prependMasks, new File(dir, "prepend.hcmask"));
+    }
+
+    private static void write(CompactCounter counter, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            counter.writeByCount(out);
+        }
+    }
+}
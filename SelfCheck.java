@@ -0,0 +1,351 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+public class SelfCheck {
+
+    // self-checks of the algorithmic parts (there is no test framework in the build):
+    //   java -cp <classpath> it.unive.secgroup.SelfCheck
+    // every check runs on small synthetic input and throws at the first failure
+
+    private static final String[] WORDS = {"password", "dragon", "monkey", "little", "sunshine", "princess",
+            "football", "shadow", "master", "killer", "summer", "qwerty", "Love", "iloveyou", "secret"};
+    private static final String[] SUFFIXES = {"", "1", "123", "!", "2010", "69", "@", "xx", "007", "#1"};
+
+    public static void main(String[] args) throws Exception {
+        coverageBudget();
+        coverageWeights();
+        leetDecoding();
+        leetRanking();
+        partitionedRun();
+        emailValidation();
+        emailAnalysis();
+        checkpoints();
+        System.out.println("all checks passed");
+    }
+
+    static List<String> corpus(int n, long seed) {
+        // pwds made of a few words and suffixes, skewed towards the first ones
+        Random random = new Random(seed);
+        List<String> pwds = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String word = WORDS[skewed(random, WORDS.length)];
+            if (random.nextInt(4) == 0)
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            String pwd = word + SUFFIXES[skewed(random, SUFFIXES.length)];
+            if (random.nextInt(10) == 0)
+                pwd = random.nextInt(10) + pwd;
+            pwds.add(pwd);
+        }
+        return pwds;
+    }
+
+    private static int skewed(Random random, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1, random.nextDouble())) - 1);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition)
+            throw new IllegalStateException("check failed: " + what);
+    }
+
+    // CoverageOptimizer
+
+    private static void coverageBudget() {
+        // the selection fits in the budget, and cracks what it claims
+        Transformer transformer = new Transformer();
+        transformer.setCoverageTracking(true);
+        for (String pwd : corpus(5000, 1))
+            transformer.transform(pwd);
+        checkBudgets(transformer.getCoverageOptimizer());
+        // one word with every rule, the others with the rare rules only: the rules re-chosen for that
+        // word are many more than budget / words, and all the words gain with them
+        transformer = new Transformer();
+        transformer.setCoverageTracking(true);
+        for (int i = 0; i < 100; i++) {
+            transformer.transform("dragon" + i, i < 25 ? 100 : 10);
+            if (i >= 25)
+                for (String word : new String[] {"monkey", "shadow", "master"})
+                    transformer.transform(word + i, 1);
+        }
+        checkBudgets(transformer.getCoverageOptimizer());
+        // no word to select: nothing transformed, or emails only (their pair has no word)
+        transformer = new Transformer();
+        transformer.setCoverageTracking(true);
+        checkEmpty(transformer.getCoverageOptimizer(), 1000);
+        transformer.transform("john@gmail.com");
+        checkEmpty(transformer.getCoverageOptimizer(), 1000);
+        checkEmpty(transformer.getCoverageOptimizer(), 0);
+    }
+
+    private static void checkEmpty(CoverageOptimizer optimizer, long budget) {
+        optimizer.select(budget);
+        check(optimizer.getWords().isEmpty() && optimizer.getRules().isEmpty() && optimizer.getCracked() == 0,
+                "empty selection with budget " + budget);
+    }
+
+    private static void checkBudgets(CoverageOptimizer optimizer) {
+        for (long budget = 1; budget <= 400; budget += budget < 32 ? 1 : 17) {
+            optimizer.select(budget);
+            check(optimizer.getKeyspace() <= budget, "keyspace " + optimizer.getKeyspace() + " within budget " + budget);
+            check(optimizer.evaluate(optimizer.getWords(), optimizer.getRules()) == optimizer.getCracked(),
+                    "cracked pwds of the selection, budget " + budget);
+            check(optimizer.getCracked() > 0, "something cracked with budget " + budget);
+        }
+    }
+
+    private static void coverageWeights() {
+        // gains beyond 32 bits (weighted input) still rank first
+        Transformer transformer = new Transformer();
+        transformer.setCoverageTracking(true);
+        transformer.transform("dragon1", 3000000000L);
+        transformer.transform("monkey!", 5);
+        transformer.transform("shadow#1", 1L << 40);
+        transformer.transform("master69", 7);
+        CoverageOptimizer optimizer = transformer.getCoverageOptimizer();
+        optimizer.select(1);
+        check(optimizer.getWords().equals(Collections.singletonList("shadow")), "heaviest word selected: " + optimizer.getWords());
+        check(optimizer.getCracked() == 1L << 40, "heaviest pwd cracked: " + optimizer.getCracked());
+        optimizer.select(4);
+        check(optimizer.getCracked() == (1L << 40) + 3000000000L, "two heaviest pwds cracked: " + optimizer.getCracked());
+    }
+
+    // LeetDecoder
+
+    private static void leetDecoding() {
+        LeetDecoder decoder = new LeetDecoder().addWords(Arrays.asList("password", "little", "hello", "illegal", "lol"));
+        checkDecoding(decoder, "p@$$w0rd", "password");
+        checkDecoding(decoder, "P@$$W0RD", "password");
+        // 1, | and ! stand for i or l
+        checkDecoding(decoder, "1itt|e", "little");
+        checkDecoding(decoder, "!11e9a1", "illegal");
+        checkDecoding(decoder, "h3ll0", "hello");
+        // at least one substitution, and only dictionary words
+        checkDecoding(decoder, "hello", null);
+        checkDecoding(decoder, "h3ll", null);
+        checkDecoding(decoder, "xyz1", null);
+        checkDecoding(decoder, "", null);
+        char[] chars = "h3ll0".toCharArray();
+        check("hello".equals(decoder.decode(chars, 0, 5)) && decoder.decode(chars, 1, 4) == null, "decoding of a slice");
+    }
+
+    private static void leetRanking() {
+        // an ambiguous token decodes to the word listed first
+        checkDecoding(new LeetDecoder().addWords(Arrays.asList("lil", "iii", "lll")), "111", "lil");
+        checkDecoding(new LeetDecoder().addWords(Arrays.asList("iii", "lil", "lll")), "111", "iii");
+        checkDecoding(new LeetDecoder().addWords(Arrays.asList("lll", "iii", "lil")), "1|!", "lll");
+        // a custom table: 1 is l only
+        checkDecoding(new LeetDecoder("1:l").addWords(Arrays.asList("iii", "lil", "lll")), "111", "lll");
+        // the memo gives the same decodings, whatever the case
+        LeetDecoder.Memo memo = new LeetDecoder.Memo(new LeetDecoder().addWords(Arrays.asList("lil", "password")), 4);
+        for (String token : new String[] {"111", "P@SSW0RD", "p@ssw0rd", "xyz1", "111"}) {
+            char[] chars = token.toCharArray();
+            check(Objects.equals(memo.decode(chars, 0, chars.length), memo.getDecoder().decode(token)), "memo decoding of " + token);
+        }
+        check(memo.getHits() == 2 && memo.getMisses() == 3, "memo hits " + memo.getHits() + " misses " + memo.getMisses());
+    }
+
+    private static void checkDecoding(LeetDecoder decoder, String token, String expected) {
+        String decoded = decoder.decode(token);
+        check(Objects.equals(decoded, expected), token + " decoded as " + decoded + " instead of " + expected);
+    }
+
+    // PartitionedRun
+
+    private static void partitionedRun() throws IOException {
+        // the reduced wordlist and ruleset are those of a single Transformer over the same inputs
+        File dir = Files.createTempDirectory("selfcheck").toFile();
+        try {
+            List<String> pwds = corpus(6000, 2);
+            File first = new File(dir, "first.txt"), second = new File(dir, "second.txt");
+            writeLines(first, pwds.subList(0, 2000));
+            writeLines(second, pwds.subList(2000, pwds.size()));
+            List<File> inputs = Arrays.asList(first, second);
+            Transformer single = new Transformer();
+            for (String pwd : pwds)
+                single.transform(pwd);
+            single.finished();
+            CountWriter cutoff = new CountWriter().setMinCount(2).setTop(50).setCounts(true);
+            File words = new File(dir, "words.txt"), rules = new File(dir, "rules.txt");
+            File runWords = new File(dir, "run-words.txt"), runRules = new File(dir, "run-rules.txt");
+            for (CountWriter writer : new CountWriter[] {new CountWriter(), cutoff}) {
+                single.writeWords(words, writer);
+                single.writeRules(rules, writer);
+                File work = new File(dir, "work-" + writer.getTop());
+                work.mkdir();
+                PartitionedRun run = new PartitionedRun(work, 3, 4);
+                for (int index = 0; index < 3; index++)
+                    run.work(index, inputs, new Transformer(), false);
+                PartitionedRun.open(work).reduce(runWords, runRules, 2, writer);
+                check(sameContent(words, runWords), "words of the partitioned run, top " + writer.getTop());
+                check(sameContent(rules, runRules), "rules of the partitioned run, top " + writer.getTop());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void writeLines(File file, List<String> lines) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (String line : lines)
+                out.write(line + "\n");
+        }
+    }
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        return Arrays.equals(Files.readAllBytes(a.toPath()), Files.readAllBytes(b.toPath()));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                delete(child);
+        file.delete();
+    }
+
+    // EmailAnalyzer
+
+    private static void emailValidation() {
+        // addressEnd accepts the language of Transformer.VALID_EMAIL_ADDRESS_REGEX with find(): random strings
+        // of address chars, line terminators and the non-ascii chars that fold to ascii letters (I, i, s, K)
+        String chars = "aZk09._%+-@@..\r\n\u0085\u2028\u2029 \u0130\u0131\u017f\u212a!x";
+        String[] parts = {"john", "a.b", "x+y", "", "@", ".", "gmail", "com", "co", "uk", "c0m", "COM", "\n", "\r\n",
+                "\r", "\u2028", "\u212a", "-", "abcdefg"};
+        Random random = new Random(3);
+        int emails = 0;
+        for (int i = 0; i < 200000; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(16);
+            if (i % 3 == 2)
+                text.append(parts[random.nextInt(7)]).append('@').append(parts[6 + random.nextInt(4)]).append('.')
+                        .append(parts[6 + random.nextInt(13)]);
+            else if (i % 2 == 0)
+                for (int j = 0; j < length; j++)
+                    text.append(chars.charAt(random.nextInt(chars.length())));
+            else
+                for (int j = 0; j < length / 3 + 1; j++)
+                    text.append(parts[random.nextInt(parts.length)]);
+            String address = text.toString();
+            boolean expected = Transformer.VALID_EMAIL_ADDRESS_REGEX.matcher(address).find();
+            check(EmailAnalyzer.isEmail(address) == expected, "validation of " + escape(address) + ", expected " + expected);
+            if (expected)
+                emails++;
+        }
+        check(emails > 10000, "enough valid addresses: " + emails);
+        check(EmailAnalyzer.addressEnd("ab@cd.com\r\n".toCharArray(), 0, 11) == 9, "address before a line terminator");
+        check(EmailAnalyzer.addressEnd("xab@cd.comx".toCharArray(), 1, 9) == 9, "address in a slice");
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : text.toCharArray())
+            escaped.append(c < 32 || c > 126 ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+        return escaped.toString();
+    }
+
+    private static List<String> emailCorpus() {
+        List<String> pwds = corpus(3000, 4);
+        String[] domains = {"gmail.com", "yahoo.co.uk", "hotmail.com", "Mail.Ru", "libero.it", "aol.com"};
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            String domain = i % 3 == 0 ? "host" + i + ".net" : domains[skewed(random, domains.length)];
+            pwds.add(WORDS[skewed(random, WORDS.length)] + (i % 10) + "@" + domain);
+        }
+        Collections.shuffle(pwds, random);
+        return pwds;
+    }
+
+    private static void emailAnalysis() throws IOException {
+        // domain counts, the top domain rules only, and the same rules from a partitioned run
+        List<String> pwds = emailCorpus();
+        Transformer single = new Transformer();
+        single.setEmailAnalysis(3, 2);
+        for (String pwd : pwds)
+            single.transform(pwd);
+        single.finished();
+        EmailAnalyzer emails = single.getEmailAnalyzer();
+        Map<String, Long> expected = new HashMap<>();
+        for (String pwd : pwds)
+            if (Transformer.VALID_EMAIL_ADDRESS_REGEX.matcher(pwd).matches())
+                expected.merge(pwd.substring(pwd.indexOf('@') + 1), 1L, Long::sum);
+        check(emails.size() == expected.size() && emails.total() == 2000, "domains " + emails.size() + ", emails " + emails.total());
+        for (Map.Entry<String, Long> domain : expected.entrySet())
+            check(emails.count(domain.getKey()) == domain.getValue(), "count of " + domain.getKey());
+        check(emails.suffixCount("co.uk") == expected.get("yahoo.co.uk"), "suffix count of co.uk");
+        int domainRules = 0;
+        for (String rule : single.getRules().keySet())
+            if (rule.startsWith("$@") && rule.contains("$."))
+                domainRules++;
+        check(domainRules == 3, "domain rules: " + domainRules);
+
+        File dir = Files.createTempDirectory("selfcheck").toFile();
+        try {
+            File input = new File(dir, "emails.txt");
+            writeLines(input, pwds);
+            File words = new File(dir, "words.txt"), rules = new File(dir, "rules.txt");
+            single.writeWords(words);
+            single.writeRules(rules);
+            PartitionedRun run = new PartitionedRun(dir, 3, 5);
+            for (int index = 0; index < 3; index++) {
+                Transformer worker = new Transformer();
+                worker.setEmailAnalysis(3, 2);
+                run.work(index, Collections.singletonList(input), worker, false);
+            }
+            File runWords = new File(dir, "run-words.txt"), runRules = new File(dir, "run-rules.txt");
+            run.reduce(runWords, runRules, 2);
+            check(sameContent(words, runWords), "words of the partitioned run with email analysis");
+            check(sameContent(rules, runRules), "rules of the partitioned run with email analysis");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // ResumableRun
+
+    private static void checkpoints() throws IOException {
+        // a run resumed from a checkpoint keeps the domains counted before it, and the modes whose state
+        // is not saved are rejected
+        File dir = Files.createTempDirectory("selfcheck").toFile();
+        try {
+            List<String> pwds = emailCorpus();
+            File first = new File(dir, "first.txt"), second = new File(dir, "second.txt");
+            writeLines(first, pwds.subList(0, 2500));
+            writeLines(second, pwds.subList(2500, pwds.size()));
+            File checkpoint = new File(dir, "checkpoint");
+            Transformer before = new Transformer();
+            before.setEmailAnalysis(3, 2);
+            new ResumableRun(before, checkpoint, 1 << 12).process(first);
+            Transformer after = new Transformer();
+            after.setEmailAnalysis(3, 2);
+            new ResumableRun(after, checkpoint, 1 << 12).process(second);
+            after.finished();
+            Transformer single = new Transformer();
+            single.setEmailAnalysis(3, 2);
+            for (String pwd : pwds)
+                single.transform(pwd);
+            single.finished();
+            check(after.getEmailAnalyzer().total() == single.getEmailAnalyzer().total(), "domains after a resume");
+            check(after.getRules().equals(single.getRules()), "rules after a resume");
+            try {
+                new ResumableRun(new Transformer(), checkpoint, 1 << 12);
+                check(false, "a checkpoint with email analysis resumed without");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Transformer segmentation = new Transformer();
+            segmentation.setSegmentation(true);
+            try {
+                new ResumableRun(segmentation, new File(dir, "other"), 1 << 12);
+                check(false, "checkpoints of a transformer with segmentation");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.util.*;
+
+public class SpillingCounter {
+
+    // bounds the memory used by a CompactCounter: when the counter grows beyond the budget,
+    // its entries are written to disk as a run sorted by key and the counter starts over.
+    // at the end, the runs are merged (k-way, summing the counts of the same key) and the final
+    // frequency-sorted list is produced by an external sort by count: the heap stays bounded at any size.
+    //
+    // run format, one entry after the other:
+    //   [varint key length][key chars, one varint each][varlong count]
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // max number of runs merged at once (each one holds an input buffer)
+    private static final int MERGE_FAN_IN = 64;
+
+    private final CompactCounter counter;
+    private final File dir;
+    private final String name;
+    private final long budget;
+    private final List<File> runs = new ArrayList<>();
+    // the runs have been consumed by writeByCount (and deleted)
+    private boolean written;
+
+    public SpillingCounter(CompactCounter counter, File dir, String name, long budget) {
+        this.counter = counter;
+        this.dir = dir;
+        this.name = name;
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public boolean isSpilled() {
+        return !runs.isEmpty() || written;
+    }
+
+    public boolean check() {
+        // spills the counter if it exceeds the budget
+        if (counter.size() > 0 && counter.memoryUsage() > budget) {
+            spill();
+            return true;
+        }
+        return false;
+    }
+
+    public void spill() {
+        try {
+            File run = newRun();
+            try (DataOutputStream out = output(run)) {
+                counter.writeRun(out);
+            }
+            runs.add(run);
+            counter.clear();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void adopt(SpillingCounter other) {
+        // takes over the runs spilled by another counter (e.g. a worker of ParallelTransformer)
+        runs.addAll(other.runs);
+        other.runs.clear();
+    }
+
+    public void merge() {
+        // merges the runs and what is still in memory into a single run
+        if (runs.isEmpty())
+            return;
+        if (counter.size() > 0)
+            spill();
+        try {
+            while (runs.size() > 1) {
+                List<File> group = new ArrayList<>(runs.subList(0, Math.min(MERGE_FAN_IN, runs.size())));
+                File merged = newRun();
+                try {
+                    mergeByKey(group, merged);
+                } catch (IOException | RuntimeException e) {
+                    merged.delete();
+                    throw e;
+                }
+                runs.removeAll(group);
+                runs.add(merged);
+                for (File run : group)
+                    run.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeByCount(File file) throws IOException {
+        // one key per line, by decreasing count (ties by key)
+        writeByCount(file, new CountWriter());
+    }
+
+    public long writeByCount(File file, CountWriter writer) throws IOException {
+        // with the options of writer, returns the number of lines written.
+        // the keys below the min count are dropped before the external sort.
+        // the runs are deleted once read: the spilled counts can be written once
+        if (written)
+            throw new IllegalStateException("the spilled " + name + " have been written already");
+        if (runs.isEmpty()) {
+            try (CountWriter.Output out = writer.open(file)) {
+                counter.writeByCount(out);
+                return out.getLines();
+            }
+        }
+        merge();
+
+        // external sort by count: chunks of the merged run that fit in the budget become sorted runs.
+        // the output is opened first and the merged run deleted only once written: a failed write
+        // keeps the spilled counts, and can be retried
+        List<File> countRuns = new ArrayList<>();
+        long lines;
+        try (CountWriter.Output out = writer.open(file)) {
+            List<String> keys = new ArrayList<>();
+            long[] counts = new long[1024];
+            long used = 0;
+            try (Run merged = new Run(runs.get(0))) {
+                while (merged.next()) {
+                    if (merged.count < writer.getMinCount())
+                        continue;
+                    if (keys.size() == counts.length)
+                        counts = Arrays.copyOf(counts, counts.length * 2);
+                    counts[keys.size()] = merged.count;
+                    keys.add(new String(merged.key, 0, merged.length));
+                    used += 64 + 2L * merged.length;
+                    if (used > budget) {
+                        countRuns.add(writeCountRun(keys, counts));
+                        keys.clear();
+                        used = 0;
+                    }
+                }
+            }
+            CompactCounter.KeyFormat format = counter.getKeyFormat();
+            if (countRuns.isEmpty()) {
+                for (int i : sortByCount(counts, keys.size())) {
+                    String key = keys.get(i);
+                    if (!out.write(format != null ? format.format(key.toCharArray(), 0, key.length()) : key, counts[i]))
+                        break;
+                }
+            } else {
+                if (!keys.isEmpty())
+                    countRuns.add(writeCountRun(keys, counts));
+                keys = null;
+                mergeByCount(countRuns, format, out);
+            }
+            lines = out.getLines();
+        } finally {
+            for (File run : countRuns)
+                run.delete();
+        }
+        written = true;
+        close();
+        return lines;
+    }
+
+    private File writeCountRun(List<String> keys, long[] counts) throws IOException {
+        File run = newRun();
+        char[] chars = new char[64];
+        try (DataOutputStream out = output(run)) {
+            for (int i : sortByCount(counts, keys.size())) {
+                String key = keys.get(i);
+                if (chars.length < key.length())
+                    chars = new char[Math.max(key.length(), chars.length * 2)];
+                key.getChars(0, key.length(), chars, 0);
+                writeEntry(out, chars, key.length(), counts[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            run.delete();
+            throw e;
+        }
+        return run;
+    }
+
+    private static int[] sortByCount(long[] counts, int n) {
+        // stable (the entries come by key) merge sort of the positions by decreasing count
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++)
+            index[i] = i;
+        int[] buffer = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int from = 0; from < n; from += 2 * width) {
+                int mid = Math.min(from + width, n), to = Math.min(from + 2 * width, n);
+                int i = from, j = mid, k = from;
+                while (i < mid && j < to)
+                    buffer[k++] = counts[index[j]] > counts[index[i]] ? index[j++] : index[i++];
+                while (i < mid) buffer[k++] = index[i++];
+                while (j < to) buffer[k++] = index[j++];
+            }
+            int[] swap = index; index = buffer; buffer = swap;
+        }
+        return index;
+    }
+
+    private static void mergeByKey(List<File> group, File merged) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(group.size(), new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                return a.compareKey(b);
+            }
+        });
+        try (DataOutputStream out = output(merged)) {
+            for (File file : group) {
+                Run run = new Run(file);
+                if (run.next()) queue.add(run);
+                else run.close();
+            }
+            char[] key = new char[64];
+            int length = -1;
+            long count = 0;
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (length >= 0 && run.sameKey(key, length)) {
+                    count += run.count;
+                } else {
+                    if (length >= 0)
+                        writeEntry(out, key, length, count);
+                    if (key.length < run.length)
+                        key = new char[Math.max(run.length, key.length * 2)];
+                    System.arraycopy(run.key, 0, key, 0, run.length);
+                    length = run.length;
+                    count = run.count;
+                }
+                if (run.next()) queue.add(run);
+                else run.close();
+            }
+            if (length >= 0)
+                writeEntry(out, key, length, count);
+        } finally {
+            for (Run run : queue)
+                run.close();
+        }
+    }
+
+    static void mergeByCount(List<File> countRuns, CompactCounter.KeyFormat format, CountWriter.Output out) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(countRuns.size(), new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                int c = Long.compare(b.count, a.count);
+                return c != 0 ? c : a.compareKey(b);
+            }
+        });
+        try {
+            for (File file : countRuns) {
+                Run run = new Run(file);
+                if (run.next()) queue.add(run);
+                else run.close();
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                boolean written = format != null
+                        ? out.write(format.format(run.key, 0, run.length), run.count)
+                        : out.write(run.key, 0, run.length, run.count);
+                if (!written) {
+                    run.close();
+                    break;
+                }
+                if (run.next()) queue.add(run);
+                else run.close();
+            }
+        } finally {
+            for (Run run : queue)
+                run.close();
+        }
+    }
+
+    public void close() {
+        // deletes the runs still on disk: after a failure, or if the counts are not going to be written
+        for (File run : runs)
+            run.delete();
+        runs.clear();
+    }
+
+    private File newRun() throws IOException {
+        return File.createTempFile(name + "-", ".run", dir);
+    }
+
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    static void writeEntry(DataOutputStream out, char[] key, int length, long count) throws IOException {
+        writeVarLong(out, length);
+        for (int i = 0; i < length; i++)
+            writeVarLong(out, key[i]);
+        writeVarLong(out, count);
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    static class Run implements Closeable {
+        private final DataInputStream in;
+        char[] key = new char[64];
+        int length;
+        long count;
+
+        Run(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            int first = in.read();
+            if (first < 0)
+                return false;
+            int length = first & 0x7F;
+            if (first >= 0x80)
+                length |= (int) readVarLong(in) << 7;
+            if (key.length < length)
+                key = new char[Math.max(length, key.length * 2)];
+            for (int i = 0; i < length; i++)
+                key[i] = (char) readVarLong(in);
+            this.length = length;
+            count = readVarLong(in);
+            return true;
+        }
+
+        int compareKey(Run other) {
+            for (int i = 0; i < length && i < other.length; i++)
+                if (key[i] != other.key[i])
+                    return key[i] - other.key[i];
+            return length - other.length;
+        }
+
+        boolean sameKey(char[] other, int otherLength) {
+            if (length != otherLength)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (key[i] != other[i])
+                    return false;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
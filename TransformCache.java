@@ -0,0 +1,261 @@
+package it.unive.secgroup;
+
+import java.util.*;
+
+public class TransformCache {
+
+    // memoizes the analysis of the pwds seen recently: pwd -> the (word, rule) pairs it produced, replayed
+    // on its next occurrences instead of analyzing it again (for streams that are not deduplicated).
+    // the memory is bounded by maxBytes (an estimate of the size of the entries): the least recently used
+    // entries are evicted, but a new pwd gets in only if it was seen more often than the entries it would
+    // evict (TinyLFU admission), so the long tail of pwds seen once does not flush the frequent ones.
+    // frequencies come from a count-min sketch of 4 bit counters, halved every sampleSize pwds.
+    // one per Transformer: not thread safe
+
+    // estimated bytes of an entry besides its chars (key, char arrays, map entry)
+    private static final int ENTRY_OVERHEAD = 128;
+    // estimated bytes of a typical entry, to size the sketch
+    private static final int TYPICAL_ENTRY = 192;
+    // pairs are (word length, word, rule length, rule): lengths fit in a char, NO_WORD for a missing word
+    static final char NO_WORD = Character.MAX_VALUE;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, char[]> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    // looks up the pwd in place: keys are copied only when an entry is stored
+    private final Key probe = new Key(null, 0, 0);
+    private long bytes;
+    private long hits, misses, rejections, evictions;
+
+    // allocated by the first get: a cache that only gathers the statistics of others never needs it
+    private long[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int samples;
+
+    // the pwd missed last and its pairs, until put (pending false: nothing to record)
+    private boolean pending;
+    private char[] pendingPwd = new char[64];
+    private int pendingLength;
+    private int pendingHash;
+    private char[] pairs = new char[256];
+    private int pairsLength;
+
+    public TransformCache(long maxBytes) {
+        if (maxBytes < ENTRY_OVERHEAD)
+            throw new IllegalArgumentException("cache too small: " + maxBytes + " bytes");
+        this.maxBytes = maxBytes;
+        long expected = Math.min(1 << 24, Math.max(64, maxBytes / TYPICAL_ENTRY));
+        int counters = Integer.highestOneBit((int) expected - 1) << 1;
+        sketchMask = counters - 1;
+        sampleSize = 10 * counters;
+    }
+
+    char[] get(char[] pwd, int length) {
+        // the pairs of pwd[0, length), or null: then the pairs added until put are those of pwd
+        int hash = hash(pwd, length);
+        increment(hash);
+        probe.chars = pwd;
+        probe.length = length;
+        probe.hash = hash;
+        char[] cached = entries.get(probe);
+        probe.chars = null;
+        if (cached != null) {
+            hits++;
+            pending = false;
+            return cached;
+        }
+        misses++;
+        if (pendingPwd.length < length)
+            pendingPwd = new char[Math.max(length, pendingPwd.length * 2)];
+        System.arraycopy(pwd, 0, pendingPwd, 0, length);
+        pendingLength = length;
+        pendingHash = hash;
+        pending = true;
+        pairsLength = 0;
+        return null;
+    }
+
+    void add(char[] word, int off, int len, char[] rule, int ruleOff, int ruleLength) {
+        if (!pending)
+            return;
+        if (len >= NO_WORD || ruleLength >= NO_WORD) {
+            pending = false;
+            return;
+        }
+        int wordChars = word == null ? 0 : len;
+        if (pairs.length < pairsLength + wordChars + ruleLength + 2)
+            pairs = Arrays.copyOf(pairs, Math.max(pairsLength + wordChars + ruleLength + 2, pairs.length * 2));
+        pairs[pairsLength++] = word == null ? NO_WORD : (char) len;
+        if (word != null)
+            System.arraycopy(word, off, pairs, pairsLength, len);
+        pairsLength += wordChars;
+        pairs[pairsLength++] = (char) ruleLength;
+        System.arraycopy(rule, ruleOff, pairs, pairsLength, ruleLength);
+        pairsLength += ruleLength;
+    }
+
+    void put() {
+        // stores the pairs of the pwd missed last, if it is worth more than the entries it evicts
+        if (!pending)
+            return;
+        pending = false;
+        long size = size(pendingLength, pairsLength);
+        if (size > maxBytes) {
+            rejections++;
+            return;
+        }
+        if (bytes + size > maxBytes) {
+            // the least recently used entries that make room, all of them less frequent than pwd
+            int frequency = frequency(pendingHash);
+            long freed = 0;
+            int victims = 0;
+            for (Map.Entry<Key, char[]> victim : entries.entrySet()) {
+                if (bytes - freed + size <= maxBytes)
+                    break;
+                if (frequency <= frequency(victim.getKey().hash)) {
+                    rejections++;
+                    return;
+                }
+                freed += size(victim.getKey().length, victim.getValue().length);
+                victims++;
+            }
+            Iterator<Map.Entry<Key, char[]>> eldest = entries.entrySet().iterator();
+            for (int i = 0; i < victims; i++) {
+                eldest.next();
+                eldest.remove();
+            }
+            bytes -= freed;
+            evictions += victims;
+        }
+        entries.put(new Key(Arrays.copyOf(pendingPwd, pendingLength), pendingLength, pendingHash),
+                Arrays.copyOf(pairs, pairsLength));
+        bytes += size;
+    }
+
+    private static long size(int keyLength, int pairsLength) {
+        return ENTRY_OVERHEAD + 2L * (keyLength + pairsLength);
+    }
+
+    private static int hash(char[] pwd, int length) {
+        // the hash of String
+        int h = 0;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + pwd[i];
+        return h;
+    }
+
+    private void increment(int hash) {
+        if (sketch == null)
+            sketch = new long[(sketchMask + 1) / 16];
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int counter = index(hash, i);
+            int shift = (counter & 15) << 2;
+            if ((sketch[counter >>> 4] >>> shift & 15) < 15) {
+                sketch[counter >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++samples == sampleSize)
+            age();
+    }
+
+    private int frequency(int hash) {
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int counter = index(hash, i);
+            frequency = Math.min(frequency, (int) (sketch[counter >>> 4] >>> ((counter & 15) << 2) & 15));
+        }
+        return frequency;
+    }
+
+    private void age() {
+        // halves every counter, so that the frequencies follow the recent history
+        for (int i = 0; i < sketch.length; i++)
+            sketch[i] = sketch[i] >>> 1 & 0x7777777777777777L;
+        samples /= 2;
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + i * 0x9E3779B97F4A7C15L) * 0xC4CEB9FE1A85EC53L;
+        return (int) (h >>> 32 ^ h) & sketchMask;
+    }
+
+    void merge(TransformCache other) {
+        // adds the statistics of another (e.g. worker-local) cache, the entries stay where they are
+        hits += other.hits;
+        misses += other.misses;
+        rejections += other.rejections;
+        evictions += other.evictions;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public long getRejections() {
+        // misses that were not cached: less frequent than the entries they would have evicted
+        return rejections;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private static final class Key {
+        // a pwd in chars[0, length): stored keys own their chars, the probe points to the pwd looked up
+        char[] chars;
+        int length;
+        int hash;
+
+        Key(char[] chars, int length, int hash) {
+            this.chars = chars;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            if (other.hash != hash || other.length != length)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (other.chars[i] != chars[i])
+                    return false;
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d bytes, %d hits, %d misses (%.1f%% hit rate), %d rejected, %d evicted",
+                entries.size(), bytes, hits, misses, 100 * getHitRate(), rejections, evictions);
+    }
+}
@@ -1,34 +1,80 @@
 package it.unive.secgroup;
 
-import org.apache.commons.lang3.StringUtils;
-
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Transformer {
 
     private Set<CharType> types;
-    private Map<String, Integer> words = new HashMap<>(500000);
-    private Map<String, Integer> rules = new HashMap<>(500000);
-    private BufferedOutputStream debug;
+    private CompactCounter words = new CompactCounter(500000);
+    private CompactCounter rules = newRuleCounter(500000);
+    private DebugSink.Producer debug;
+    // the sink is owned (and closed by finished()) only when opened by setDebug(File)
+    private DebugSink debugSink;
+    // spill mode: the counters are bounded in memory and overflow to sorted runs on disk
+    private SpillingCounter wordSpill;
+    private SpillingCounter ruleSpill;
+    private int recorded;
+    // approximate mode: only the heaviest words/rules are counted, in constant memory
+    private ApproximateCounter approximateWords;
+    private ApproximateCounter approximateRules;
+    // verification: every (word, rule) pair is replayed through the rule engine before being counted
+    private Verification verification = Verification.None;
+    private RuleEngine engine;
+    private long verified;
+    private CompactCounter mismatches;
+    // coverage tracking: the (word, rule) pairs of every pwd, as a group key, for the CoverageOptimizer
+    private CompactCounter pairGroups;
+    private char[] group = new char[256];
+    private int groupLength;
+    // segmentation: typed runs, masks and date tokens of every pwd, for the hybrid attacks
+    private SegmentAnalyzer segments;
+    // leetspeak: the converted words are looked up in a dictionary, through many-to-many substitutions
+    private LeetDecoder.Memo leet;
+    private int leetLength;
+    // pipeline analysis stage: the batch receiving the pairs (null: they are counted)
+    private TransformerPipeline.Batch pairs;
+    private TransformerMetrics metrics = TransformerMetrics.NONE;
+    // multiplicity of the pwd being analyzed (count:password input): added to the counters in one go
+    private long weight = 1;
+    // the pairs of the recent pwds, replayed on repeats instead of analyzing them again (null: off)
+    private TransformCache cache;
+    // letters, digits and symbols: ascii only unless unicode letters are on (see CharClass)
+    private CharClass classes = CharClass.ASCII;
+    // email analysis: domains are counted in a trie, only the top ones become rules (in finished())
+    private EmailAnalyzer emails;
+    private int topDomains;
+    private long domainMinCount;
+    private boolean domainRulesAdded;
+    private static final int LEET_EXTENSION = 3;
+
+    // scratch buffers: a Transformer is used by one thread at a time,
+    // so every password is analyzed in place instead of through temporary Strings
+    private char[] pwd = new char[64];
+    private int pwdLength;
+    private char[] part = new char[64];
+    private char[] lower = new char[64];
+    private char[] word = new char[64];
+    private char[] word2 = new char[64];
+    private char[] squeezed = new char[64];
+    private char[] converted = new char[64];
+    private int unwrapStart;
+    private final char[] replaces = new char[128];
+    // rules are built and counted as op-codes, rendered as hashcat text only for the output
+    private final RuleBuilder rule = new RuleBuilder();
+    private final StringBuilder ruleText = new StringBuilder(256);
 
     // enhancedCopy activates enhanced copy command in hashcat
     // unfortunately, it cannot be used along with OpenCL kernels
     private boolean enhancedCopy = false;
-    private static LocalDate MIN_DATE = LocalDate.of(1950, 1, 1);
-    private static LocalDate MAX_DATE = LocalDate.of(2050, 12, 31);
-    private static DateTimeFormatter[] DATES = new DateTimeFormatter[] {
-            DateTimeFormatter.ofPattern("yyyyMMdd"),
-            DateTimeFormatter.ofPattern("ddMMyyyy"),
-            DateTimeFormatter.ofPattern("MMddyyyy")};
+    private DateDetector dates = DateDetector.DEFAULT;
     public Transformer() {
         this.types = new HashSet<>(Arrays.asList(CharType.values())); // manage all types;
     }
@@ -38,12 +84,22 @@ public class Transformer {
     }
 
     public void finished() {
+        if (emails != null && !domainRulesAdded) {
+            addDomainRules();
+            domainRulesAdded = true;
+        }
         if (debug != null) {
-            try {
-                debug.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            debug.flush();
+            if (debugSink != null)
+                try {
+                    debugSink.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+        }
+        if (wordSpill != null) {
+            wordSpill.merge();
+            ruleSpill.merge();
         }
     }
 
@@ -53,19 +109,24 @@ public class Transformer {
         Symbol,
         Email  // not a character type actually
     };
+    public enum Verification {
+        None,
+        Flag,  // non-reproducing pairs are counted anyway, and reported by getMismatches
+        Drop   // non-reproducing pairs are reported and not counted
+    };
     private static final String REPLACEABLE = "0123456789$@(+|!";
     private static final String REPLACED    = "oizeasbtbgsactii";
+    // the language of isEmail, validated in one pass by EmailAnalyzer
     public static final Pattern VALID_EMAIL_ADDRESS_REGEX =
             Pattern.compile("^[A-Z0-9._%+-]+@[A-Z0-9.-]+\\.[A-Z]{2,6}$", Pattern.CASE_INSENSITIVE);
-    public boolean isEmail(String emailStr) {
-        Matcher matcher = VALID_EMAIL_ADDRESS_REGEX.matcher(emailStr);
-        return matcher.find();
+    public boolean isEmail(CharSequence emailStr) {
+        return EmailAnalyzer.isEmail(emailStr);
     }
     private boolean isLower(char c) { return c >= 'a' && c <= 'z'; }
     private boolean isUpper(char c) { return c >= 'A' && c <= 'Z'; }
-    private boolean isNumber(char c) { return c >= '0' && c <= '9'; }
-    private boolean isAlpha(char c) { return isLower(c) || isUpper(c);}
-    private boolean isSymbol(char c) { return !isNumber(c) && !isAlpha(c); }
+    private boolean isNumber(char c) { return classes.isDigit(c); }
+    private boolean isAlpha(char c) { return classes.isAlpha(c); }
+    private boolean isSymbol(char c) { return classes.isSymbol(c); }
 
     /* experimental
        not implemented
@@ -85,43 +146,120 @@ public class Transformer {
         }
     }
 
-    private CharType detectMainComponent(String pwd) {
-        int maxa = 0, maxn = 0, maxs = 0;
-		int a = 0, n = 0, s = 0;
-		int at = 0, dot = 0, i = 0;
+    private static CompactCounter newRuleCounter(int expectedKeys) {
+        CompactCounter rules = new CompactCounter(expectedKeys);
+        rules.setKeyFormat(RuleBuilder.FORMAT);
+        return rules;
+    }
 
-        // first, check for the greatest amount of character type
-        // in case of pair, alphabetic content will be preferred
-        for (char c : pwd.toCharArray()) {
-            if (isAlpha(c)) a++;
-            else if (isNumber(c)) n++;
-            else {
+    public void merge(Transformer other) {
+        // adds the counters of another (e.g. worker-local) transformer to this one
+        if (other.approximateWords != null) {
+            if (approximateWords == null)
+                throw new IllegalStateException("cannot merge approximate counters into exact ones");
+            approximateWords.merge(other.approximateWords);
+            approximateRules.merge(other.approximateRules);
+        }
+        words.addAll(other.words);
+        rules.addAll(other.rules);
+        verified += other.verified;
+        if (other.pairGroups != null)
+            pairGroups.addAll(other.pairGroups);
+        if (other.segments != null)
+            segments.merge(other.segments);
+        if (other.mismatches != null)
+            getMismatchCounter().addAll(other.mismatches);
+        if (other.emails != null)
+            emails.merge(other.emails);
+        if (other.cache != null && cache != null && other.cache != cache)
+            cache.merge(other.cache);
+        if (other.wordSpill != null && (other.wordSpill.isSpilled() || other.ruleSpill.isSpilled())) {
+            if (wordSpill == null)
+                throw new IllegalStateException("cannot merge spilled counters without spill mode");
+            wordSpill.adopt(other.wordSpill);
+            ruleSpill.adopt(other.ruleSpill);
+        }
+        if (wordSpill != null) {
+            wordSpill.check();
+            ruleSpill.check();
+        }
+    }
+
+    boolean isExact() {
+        // in memory, exact counting (neither spill nor approximate mode)
+        return wordSpill == null && approximateWords == null;
+    }
+
+    String getUnsavedState() {
+        // the modes whose state is neither in the counters nor in the domains (null if none):
+        // a checkpoint would lose it
+        if (segments != null)
+            return "segmentation";
+        if (pairGroups != null)
+            return "coverage tracking";
+        if (verification != Verification.None)
+            return "verification";
+        return null;
+    }
+
+    void restore(CompactCounter words, CompactCounter rules) {
+        // replaces the counters with the ones of a checkpoint
+        if (!isExact())
+            throw new IllegalStateException("counters can only be restored in exact in-memory mode");
+        this.words = words;
+        this.rules = rules;
+        rules.setKeyFormat(RuleBuilder.FORMAT);
+    }
+
+    public RuleCanonicalizer canonicalizeRules() {
+        // merges the rules with the same effect and drops the ones hashcat would reject
+        // (see RuleCanonicalizer); returns the canonicalizer, with the statistics of the pass
+        if (!isExact())
+            throw new IllegalStateException("rules can only be canonicalized in exact in-memory mode");
+        RuleCanonicalizer canonicalizer = new RuleCanonicalizer(!enhancedCopy);
+        rules = canonicalizer.apply(rules);
+        return canonicalizer;
+    }
+
+    CharType classify(char[] chars, int off, int len) {
+        // the main component of an (unescaped) pwd; no state involved, safe from any thread
+        return detectMainComponent(chars, off, len);
+    }
+
+    private CharType detectMainComponent(char[] pwd, int off, int length) {
+        // a single pass: the amount of every character type and its longest consecutive sequence
+        int a = 0, n = 0, s = 0;
+        int maxa = 0, maxn = 0, maxs = 0;
+        int runa = 0, runn = 0, runs = 0;
+        int at = 0, dot = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pwd[off + i];
+            if (isAlpha(c)) {
+                a++;
+                runn = 0; runs = 0;
+                if (maxa < ++runa) maxa = runa;
+            } else if (isNumber(c)) {
+                n++;
+                runa = 0; runs = 0;
+                if (maxn < ++runn) maxn = runn;
+            } else {
                 if      (c == '@') at = i;
                 else if (c == '.') dot = i;
                 s++;
+                runa = 0; runn = 0;
+                if (maxs < ++runs) maxs = runs;
             }
-            i++;
         }
-        if (at > 0 && dot > at && isEmail(pwd)) return CharType.Email;
+
+        // first, check for the greatest amount of character type
+        // in case of pair, alphabetic content will be preferred
+        if (at > 0 && dot > at && EmailAnalyzer.addressEnd(pwd, off, length) >= 0) return CharType.Email;
         if (a >= n + s || a >= n && a >= s)     return CharType.Alpha;
         if (n >= a + s || n >= a && n > s)      return CharType.Numeric;
-        if (s == pwd.length())                  return CharType.Symbol;
+        if (s == length)                        return CharType.Symbol;
 
         // no winner found so far.
         // try to check the character type that presents the longest consecutive sequence
-        a = 0; n = 0; s = 0;
-        for (char c : pwd.toCharArray()) {
-            if (isAlpha(c)) {
-                n = 0; s = 0; a++;
-            } else if (isNumber(c)) {
-                a = 0; s = 0; n++;
-            } else {
-                a = 0; n = 0; s++;
-            }
-            if (maxa < a) maxa = a;
-            if (maxn < n) maxn = n;
-            if (maxs < s) maxs = s;
-        }
         if      (maxa >= maxn + maxs || maxa >= maxn && maxa >= maxs - 1) return CharType.Alpha;
         else if (maxn >= maxa + maxs || maxn >= maxa && maxn >= maxs - 1) return CharType.Numeric;
 
@@ -129,470 +267,1099 @@ public class Transformer {
         return CharType.Symbol;
     }
 
-    private String extractPart(String pwd, CharType charType) {
-        // extracts the interested part
+    private int extractPart(CharType charType, char[] res) {
+        // extracts the interested part into res, returns its length
         // e.g.: pwd = !!my_name124 , charType = Alpha -> result = myname
-        StringBuilder res = new StringBuilder(pwd.length());
-        for (char c : pwd.toCharArray()) {
-            if (       charType.equals(CharType.Alpha)   && isAlpha(c)
-                    || charType.equals(CharType.Numeric) && isNumber(c)
-                    || charType.equals(CharType.Symbol)  && isSymbol(c))
-                res.append(c);
+        int length = 0;
+        for (int i = 0; i < pwdLength; i++) {
+            char c = pwd[i];
+            if (       charType == CharType.Alpha   && isAlpha(c)
+                    || charType == CharType.Numeric && isNumber(c)
+                    || charType == CharType.Symbol  && isSymbol(c))
+                res[length++] = c;
         }
-        return res.toString();
+        return length;
     }
 
-    private String removeWrapper(String l, CharType type) {
+    private int removeWrapper(CharType type) {
         // Note: removeWrapper differs slightly from extractPart. eg:
         // original      : 123ab(_def!!!
         // extract alpha : abdef
         // unwrap alpha  : ab(_def
+        // the unwrapped part is pwd[unwrapStart, unwrapStart + length)
 
+        char[] l = pwd;
         int s = 0;
-        int e = l.length() - 1;
-        while (s <= e && (type.equals(CharType.Alpha)   && !isAlpha(l.charAt(s)))
-                       || type.equals(CharType.Numeric) && !isNumber(l.charAt(s))
-                       || type.equals(CharType.Symbol)  && !isSymbol(l.charAt(e))) {
+        int e = pwdLength - 1;
+        while (s <= e && (type == CharType.Alpha   && !isAlpha(l[s]))
+                       || type == CharType.Numeric && !isNumber(l[s])
+                       || type == CharType.Symbol  && !isSymbol(l[e])) {
             s++;
         }
-        while (s <= e && (type.equals(CharType.Alpha)   && !isAlpha(l.charAt(e)))
-                       || type.equals(CharType.Numeric) && !isNumber(l.charAt(e))
-                       || type.equals(CharType.Symbol)  && !isSymbol(l.charAt(e))) {
+        while (s <= e && (type == CharType.Alpha   && !isAlpha(l[e]))
+                       || type == CharType.Numeric && !isNumber(l[e])
+                       || type == CharType.Symbol  && !isSymbol(l[e])) {
             e--;
         }
-        String result = l.substring(s, e + 1);
-        return result;
+        unwrapStart = s;
+        return e + 1 - s;
     }
 
-    private void addPrefixRule(StringBuilder rule, int s, String pwd) {
-        while (s > 0)                {s--; rule.append("^").append(pwd.charAt(s));}
+    private void addPrefixRule(RuleBuilder rule, int s) {
+        while (s > 0)                {s--; rule.prepend(pwd[s]);}
     }
 
-    private void addSuffixRule(StringBuilder rule, int e, String pwd) {
-        while (e < pwd.length() - 1) {e++; rule.append("$").append(pwd.charAt(e));}
+    private void addSuffixRule(RuleBuilder rule, int e) {
+        while (e < pwdLength - 1)    {e++; rule.append(pwd[e]);}
     }
 
-    private void addInsertRule(StringBuilder rule, int i, String pwd) {
-        rule.append("i").append(getHCPosition(i)).append(pwd.charAt(i)).append(' ');
+    private void addInsertRule(RuleBuilder rule, int i, char c) {
+        rule.insert(i, c);
     }
 
-    private String checkRuleSyntax(StringBuilder builder) {
-        if (builder.length() == 0)
-            return ":";
-
-        String rule = builder.toString();
-        if (rule.endsWith("  ") || rule.endsWith("$ ") || rule.endsWith("^ "))
-            return rule.trim() + " ";
-
-        return rule.trim();
+    public String checkCharRepetitions(String text, StringBuilder rule, int minRep) {
+        char[] chars = text.toCharArray();
+        char[] word = new char[chars.length];
+        RuleBuilder commands = rule != null ? new RuleBuilder() : null;
+        int length = checkCharRepetitions(chars, chars.length, commands, minRep, word);
+        if (rule != null)
+            commands.appendCommands(rule);
+        return new String(word, 0, length);
     }
 
-    public String checkCharRepetitions(String text, StringBuilder rule, int minRep) {
-        String word = text;
-        String temp = text + '\n' + '\n';
-        if (enhancedCopy) {
-            rule.append("M ");
+    private int checkCharRepetitions(char[] text, int length, RuleBuilder rule, int minRep, char[] word) {
+        // squeezes the runs of repeated chars of text into word (down to minRep chars), returns its length.
+        // if rule is not null, it receives the commands that restore the repetitions
+        if (enhancedCopy && rule != null) {
+            rule.memorize();
         }
 
         int r = 0;
-        for (int t = 0; t < temp.length() - 2; t++) {
-            while (    temp.charAt(t + 0) == temp.charAt(t + 1)
-                    && ((minRep == 1) || temp.charAt(t + 1) == temp.charAt(t + 2))) {
-
-                if (enhancedCopy)
-                    rule.append("X").append(getHCPosition(r + 1)).append('1').append(getHCPosition(t)).append(' ');
-                else
-                    addInsertRule(rule, t, temp);
-
-                word = word.substring(0, r) + word.substring(r + 1);
+        for (int t = 0; t < length; t++) {
+            while (    charAt(text, length, t) == charAt(text, length, t + 1)
+                    && ((minRep == 1) || charAt(text, length, t + 1) == charAt(text, length, t + 2))) {
+
+                if (rule != null) {
+                    if (enhancedCopy) {
+                        rule.insertMemory(r + 1, 1, t);
+                    } else
+                        addInsertRule(rule, t, text[t]);
+                }
                 t++;
             }
+            word[r] = text[t];
             r++;
         }
-        return word;
+        return r;
     }
 
-    private String getAugmentNumberRule(String pwd, String deflated, int repeat, boolean reverse, boolean mayBeDate) {
-        StringBuilder rule = new StringBuilder(pwd.length() * 3);
+    private static char charAt(char[] text, int length, int i) {
+        // text is padded with two new lines
+        return i < length ? text[i] : '\n';
+    }
+
+    private RuleBuilder getAugmentNumberRule(char[] deflated, int deflatedLength, int repeat, boolean reverse, boolean mayBeDate) {
+        RuleBuilder rule = this.rule;
+        rule.clear();
         int i = 0;
         if (!mayBeDate) {
-            if (repeat > 0) rule.append('p').append(repeat).append(' ');
-            else if (reverse) rule.append("f ");
-            else checkCharRepetitions(deflated, rule, 1);
+            if (repeat > 0) rule.duplicate(repeat);
+            else if (reverse) rule.reflect();
+            else checkCharRepetitions(deflated, deflatedLength, rule, 1, squeezed);
         }
 
         int s = 0;
-        int e = pwd.length() - 1;
-        while (s <= e && !isNumber(pwd.charAt(s))) s++;
-        while (s <= e && !isNumber(pwd.charAt(e))) e--;
+        int e = pwdLength - 1;
+        while (s <= e && !isNumber(pwd[s])) s++;
+        while (s <= e && !isNumber(pwd[e])) e--;
 
-        addPrefixRule(rule, s, pwd);
+        addPrefixRule(rule, s);
 
         for (i = s; i < e; i++) {
-            if (!isNumber(pwd.charAt(i))) {
-                addInsertRule(rule, i, pwd);
+            if (!isNumber(pwd[i])) {
+                addInsertRule(rule, i, pwd[i]);
             }
         }
 
-        addSuffixRule(rule, e, pwd);
-        return checkRuleSyntax(rule);
+        addSuffixRule(rule, e);
+        return rule.finish(true);
     }
 
-    private String getAugmentSymbolRule(String pwd, int repeat, boolean reverse) {
-        StringBuilder rule = new StringBuilder(pwd.length() * 3);
+    private RuleBuilder getAugmentSymbolRule(int repeat, boolean reverse) {
+        RuleBuilder rule = this.rule;
+        rule.clear();
         int i = 0;
-        if (repeat > 0) rule.append('p').append(repeat).append(' ');
-        if (reverse) rule.append("f ");
+        if (repeat > 0) rule.duplicate(repeat);
+        if (reverse) rule.reflect();
 
         int s = 0;
-        int e = pwd.length() - 1;
-        while (s <= e && !isSymbol(pwd.charAt(s))) s++;
-        while (s <= e && !isSymbol(pwd.charAt(e))) e--;
+        int e = pwdLength - 1;
+        while (s <= e && !isSymbol(pwd[s])) s++;
+        while (s <= e && !isSymbol(pwd[e])) e--;
 
-        addPrefixRule(rule, s, pwd);
+        addPrefixRule(rule, s);
 
         for (i = s; i < e; i++) {
-            if (!isSymbol(pwd.charAt(i))) {
-                addInsertRule(rule, i, pwd);
+            if (!isSymbol(pwd[i])) {
+                addInsertRule(rule, i, pwd[i]);
             }
         }
 
-        addSuffixRule(rule, e, pwd);
-        return checkRuleSyntax(rule);
+        addSuffixRule(rule, e);
+        return rule.finish(true);
     }
 
-    private String getAugmentEmailRule(String afterAt) {
-        StringBuilder rule = new StringBuilder((afterAt.length() + 1) * 2);
-        rule.append("$@");
-        for (char c : afterAt.toCharArray())
-            rule.append('$').append(c);
-        return rule.toString();
+    private RuleBuilder getAugmentEmailRule(int at) {
+        RuleBuilder rule = this.rule;
+        rule.clear();
+        rule.append('@');
+        for (int i = at + 1; i < pwdLength; i++)
+            rule.append(pwd[i]);
+        return rule.finish(false);
     }
 
-    private String getAugmentTextRule(String text, String lower, String pwd, int repeat, boolean reverse, int minRep) {
-        StringBuilder rule = new StringBuilder(pwd.length() * 3);
+    private RuleBuilder getAugmentTextRule(char[] text, char[] lower, int length, int repeat, boolean reverse, int minRep) {
+        RuleBuilder rule = this.rule;
+        rule.clear();
         int i = 0;
-        if (repeat > 0) rule.append('p').append(repeat).append(' ');
-        else if (reverse) rule.append("f ");
-        else checkCharRepetitions(lower, rule, minRep);
+        if (repeat > 0) rule.duplicate(repeat);
+        else if (reverse) rule.reflect();
+        else checkCharRepetitions(lower, length, rule, minRep, squeezed);
 
         int s = 0;
-        int e = pwd.length() - 1;
-        while (s <= e && !isAlpha(pwd.charAt(s))) s++;
-        while (s <= e && !isAlpha(pwd.charAt(e))) e--;
+        int e = pwdLength - 1;
+        while (s <= e && !isAlpha(pwd[s])) s++;
+        while (s <= e && !isAlpha(pwd[e])) e--;
 
-        addPrefixRule(rule, s, pwd);
+        addPrefixRule(rule, s);
 
-        if (text.equals(text.toUpperCase())) {
-            rule.append("t ");
+        if (isUpperCase(text, length)) {
+            rule.toggleAll();
             for (i = s; i < e; i++) {
-                if (!isAlpha(pwd.charAt(i))) {
-                    addInsertRule(rule, i, pwd);
+                if (!isAlpha(pwd[i])) {
+                    addInsertRule(rule, i, pwd[i]);
                 }
             }
         } else {
             for (i = s; i <= e; i++) {
-                if (isAlpha(pwd.charAt(i))) {
-                    if (isUpper(pwd.charAt(i))) { rule.append("T").append(getHCPosition(i)).append(' '); }
+                if (isAlpha(pwd[i])) {
+                    if (isUpper(pwd[i])) rule.toggle(i);
                 } else {
-                    addInsertRule(rule, i, pwd);
+                    addInsertRule(rule, i, pwd[i]);
                 }
             }
         }
 
-        addSuffixRule(rule, e, pwd);
-        return checkRuleSyntax(rule);
+        addSuffixRule(rule, e);
+        return rule.finish(true);
     }
 
-    public static boolean mayBeDate(String test) {
-        for (DateTimeFormatter pattern : DATES)
-            try {
-                LocalDate localDate = LocalDate.parse(test, pattern);
-                if (!localDate.isBefore(MIN_DATE) && !localDate.isAfter(MAX_DATE))
-                    return true;
-            } catch (DateTimeParseException ignored) {
+    private boolean isUpperCase(char[] text, int length) {
+        // text.equals(text.toUpperCase()), without the copy in the common (ascii) case.
+        // with unicode letters only the ascii case counts (the one the rules toggle): some upper, no lower
+        boolean upper = !classes.isUnicode();
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (c >= 0x80 && !classes.isUnicode()) {
+                String s = new String(text, 0, length);
+                return s.equals(s.toUpperCase());
             }
-        // no pattern matches...
-        return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text[i] >= 'a' && text[i] <= 'z')
+                return false;
+            if (text[i] >= 'A' && text[i] <= 'Z')
+                upper = true;
+        }
+        return upper;
+    }
+
+    public static boolean mayBeDate(String test) {
+        // yyyyMMdd, ddMMyyyy or MMddyyyy between 1950 and 2050
+        return DateDetector.DEFAULT.mayBeDate(test);
     }
-    private String getConvertTextRule(String text, String unwrapped, String pwd, int repeat) {
+
+    private RuleBuilder getConvertTextRule(char[] text, int length, int s, int repeat) {
+        // the converted text comes from pwd[s, s + length)
 
         boolean abort = false;
-        StringBuilder rule = new StringBuilder(pwd.length() * 3);
-        Map<String, String> replaces = new HashMap<>(pwd.length());
-        if (repeat > 0) rule.append('p').append(repeat).append(' ');
+        RuleBuilder rule = this.rule;
+        rule.clear();
+        char[] replaces = this.replaces;
+        Arrays.fill(replaces, (char) 0);
+        boolean replaced = false;
+        if (repeat > 0) rule.duplicate(repeat);
         int tsCount = 0;
-        int s = pwd.indexOf(unwrapped);
-        int e = s + unwrapped.length();
+        int e = s + length;
 
-        addPrefixRule(rule, s, pwd);
+        addPrefixRule(rule, s);
 
-        if (text.equals(text.toUpperCase())) {
-            rule.append("t ");
+        if (isUpperCase(text, length)) {
+            rule.toggleAll();
             for (int i = s; i < e; i++) {
-                char c = pwd.charAt(i);
+                char c = pwd[i];
                 if (!isAlpha(c)) {
-                    String r = getReplacingChar(c);
-                    if (!r.isEmpty()) {
-                        String subst = replaces.get(r);
-                        if (subst != null && !subst.equals("" + c)) {
+                    char r = getReplacingChar(c);
+                    if (r != 0) {
+                        char subst = replaces[r];
+                        if (subst != 0 && subst != c) {
                             abort = true;
                             break;
-                        } else
-                            replaces.put(r, "" +c);
+                        } else {
+                            replaces[r] = c;
+                            replaced = true;
+                        }
                     }
                 }
                 i++;
             }
         } else {
             for (int i = s; i < e; i++) {
-                char c = pwd.charAt(i);
+                char c = pwd[i];
                 if (isUpper(c)) {
-                    rule.append("T").append(getHCPosition(i)).append(' ');
+                    rule.toggle(i);
                     tsCount++;
                 } else if (!isLower(c)) {
-                    String r = getReplacingChar(c);
-                    if (!r.isEmpty()) {
-                        String subst = replaces.get(r);
-                        if (subst != null && !subst.equals("" + c)) {
+                    char r = getReplacingChar(c);
+                    if (r != 0) {
+                        char subst = replaces[r];
+                        if (subst != 0 && subst != c) {
                             abort = true;
                             break;
-                        } else
-                            replaces.put(r, "" + c);
+                        } else {
+                            replaces[r] = c;
+                            replaced = true;
+                        }
                     }
                 }
             }
         }
         if (abort)
             // not a good candidate -> there are different substitution for the same letter
-            return "";
+            return null;
 
-        if (replaces.isEmpty())
-            return "";
+        if (!replaced)
+            return null;
         else {
-            List<String> sub = new ArrayList<>(replaces.size());
-            for (String key : replaces.keySet()) {
-                sub.add("s" + key + replaces.get(key));
+            // substitutions sorted by replaced letter
+            for (char letter = 0; letter < replaces.length; letter++) {
+                if (replaces[letter] != 0)
+                    rule.replace(letter, replaces[letter]);
             }
-            Collections.sort(sub);
-            rule.append(StringUtils.join(sub, ' ')).append(" ");
         }
-        addSuffixRule(rule, e - 1, pwd);
-        return checkRuleSyntax(rule);
+        addSuffixRule(rule, e - 1);
+        return rule.finish(true);
+    }
+
+    private RuleBuilder getLeetRule(int s, int length) {
+        // pwd[s, s + length) decoded as a dictionary word (in converted), null if it is not one.
+        // the unwrapped part stops at the first letters, but symbols right outside may be part of
+        // the word (1itt|e): up to LEET_EXTENSION of them on each side are tried, longest first.
+        // a letter may come from different symbols: every symbol is put back at its position (o)
+        int from = s;
+        int to = s + length;
+        while (from > 0 && s - from < LEET_EXTENSION && leet.substitutes(pwd[from - 1]))
+            from--;
+        while (to < pwdLength && to - s - length < LEET_EXTENSION && leet.substitutes(pwd[to]))
+            to++;
+        String decoded = null;
+        for (int extended = to - from; extended >= length && decoded == null; extended--) {
+            for (int start = Math.max(from, s + length - extended); start <= s && start + extended <= to && decoded == null; start++) {
+                decoded = leet.decode(pwd, start, extended);
+                if (decoded != null) {
+                    s = start;
+                    length = extended;
+                }
+            }
+        }
+        if (decoded == null)
+            return null;
+        leetLength = length;
+        RuleBuilder rule = this.rule;
+        rule.clear();
+        addPrefixRule(rule, s);
+        for (int i = 0; i < length; i++) {
+            char c = pwd[s + i];
+            char letter = decoded.charAt(i);
+            converted[i] = letter;
+            if (c == letter)
+                continue;
+            if (isUpper(c) && c + 32 == letter)
+                rule.toggle(s + i);
+            else
+                rule.overwrite(s + i, c);
+        }
+        addSuffixRule(rule, s + length - 1);
+        return rule.finish(true);
+    }
+
+    String getConvertTextRule(String pwd) {
+        // the conversion rule the Alpha branch derives for pwd ("" if none), used by TransformerBenchmark
+        this.pwd = ensure(this.pwd, pwd.length());
+        pwd.getChars(0, pwd.length(), this.pwd, 0);
+        load(pwd.length());
+        int unwrapped = removeWrapper(CharType.Alpha);
+        int replaced = unwrapped > 0 ? replaceChars(unwrapStart, unwrapped, converted) : -1;
+        if (replaced <= 0)
+            return "";
+        int length = toLowerCase(converted, replaced);
+        RuleBuilder rule = getConvertTextRule(converted, replaced, unwrapStart, length / deflate(lower, length) - 1);
+        return rule == null ? "" : rule.render();
     }
 
     public static String deflate(String l) {
+        return l.substring(0, deflate(l.toCharArray(), l.length()));
+    }
+
+    private static int deflate(char[] l, int length) {
+        // returns the length of the smallest chunk l[0, result) that, repeated, produces l
         for (int maxrep = 10; maxrep > 1; maxrep--) {
-            if (l.length() % maxrep == 0 && l.length() > 2 * maxrep) {
-                String part = l.substring(0, l.length() / maxrep);
-                int rep = 1;
+            if (length % maxrep == 0 && length > 2 * maxrep) {
+                int part = length / maxrep;
                 boolean skip = false;
-                while (rep < maxrep && !skip) {
-                    if (!part.equals(l.substring(l.length() / maxrep * rep, l.length() / maxrep * (rep + 1))))
+                for (int i = part; i < length && !skip; i++) {
+                    if (l[i] != l[i - part])
                         skip = true;
-                    rep++;
                 }
                 if (!skip)
                     return part;
             }
         }
-        return l;
+        return length;
+    }
+
+    private static boolean isReflected(char[] l, int length) {
+        // l equals its reverse (and it is long enough to be split in two halves)
+        if (length < 6 || length % 2 != 0)
+            return false;
+        for (int i = 0, j = length - 1; i < j; i++, j--)
+            if (l[i] != l[j])
+                return false;
+        return true;
     }
 
-    private String replaceChars(String l) {
-        StringBuilder res = new StringBuilder(l.length() + 2);
-        for (int i = 0; i < l.length(); i++) {
-            char c = l.charAt(i);
+    private int replaceChars(int s, int length, char[] res) {
+        // writes the converted pwd[s, s + length) into res, returns false if nothing was replaced.
+        // the result is accepted only if it is made of letters
+        boolean changed = false;
+        for (int i = 0; i < length; i++) {
+            char c = pwd[s + i];
             int pos = REPLACEABLE.indexOf(c);
-            if (pos >= 0)
-                res.append(REPLACED.charAt(pos));
-            else // if (isAlpha(c))
-                res.append(c);
+            if (pos >= 0) {
+                c = REPLACED.charAt(pos);
+                changed = true;
+            }
+            if (!Character.isLetter(c))
+                return -1;
+            res[i] = c;
         }
-        return res.toString();
+        return changed ? length : -1;
     }
 
-    private String getReplacingChar(char c) {
+    private char getReplacingChar(char c) {
         int pos = REPLACEABLE.indexOf(c);
         if (pos >= 0)
-            return "" + REPLACED.charAt(pos);
-        return "";
+            return REPLACED.charAt(pos);
+        return 0;
+    }
+
+
+    private int toLowerCase(char[] text, int length) {
+        // lower case copy of text into this.lower, returns its length.
+        // unicode letters keep their case: no rule could restore it
+        for (int i = 0; i < length; i++) {
+            if (text[i] >= 0x80 && !classes.isUnicode()) {
+                // full unicode lower casing, it may change the length
+                String s = new String(text, 0, length).toLowerCase();
+                lower = ensure(lower, s.length());
+                s.getChars(0, s.length(), lower, 0);
+                return s.length();
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            lower[i] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+        }
+        return length;
+    }
+
+    private static char[] ensure(char[] buffer, int length) {
+        return buffer.length >= length ? buffer : new char[Math.max(length, buffer.length * 2)];
+    }
+
+    static int unescape(char[] chars, int off, int length) {
+        // pwd.replace("\\\\", "\\") in place, returns the new length
+        int n = off;
+        for (int i = off; i < off + length; i++) {
+            char c = chars[i];
+            if (c == '\\' && i + 1 < off + length && chars[i + 1] == '\\')
+                i++;
+            chars[n++] = c;
+        }
+        return n - off;
+    }
+
+    private void load(int length) {
+        prepare(unescape(pwd, 0, length));
+    }
+
+    private void prepare(int n) {
+        // the (unescaped) pwd is in pwd[0, n): sizes the scratch buffers
+        pwdLength = n;
+        part = ensure(part, n);
+        lower = ensure(lower, n);
+        word = ensure(word, n);
+        word2 = ensure(word2, n);
+        squeezed = ensure(squeezed, n);
+        converted = ensure(converted, n);
+    }
+
+    private void record(char[] word, int off, int len, RuleBuilder rule) {
+        // counts the (word, rule) pair: the keys are copied into the counters only when they are new
+        if (cache != null)
+            cache.add(word, off, len, rule.ops(), 0, rule.length());
+        record(word, off, len, rule.ops(), 0, rule.length());
+    }
+
+    private void record(char[] word, int off, int len, char[] rule, int ruleOff, int ruleLength) {
+        if (verification != Verification.None) {
+            verified += weight;
+            if (!engine.reproduces(rule, ruleOff, ruleLength, word, off, len, this.pwd, pwdLength)) {
+                getMismatchCounter().add(rule, ruleOff, ruleLength, weight);
+                if (verification == Verification.Drop)
+                    return;
+            }
+        }
+        if (pairs != null)
+            pairs.addPair(word, off, len, rule, ruleOff, ruleLength);
+        else
+            count(word, off, len, rule, ruleOff, ruleLength);
     }
 
-    private String reverseString(String l) {
-        StringBuilder res = new StringBuilder(l);
-        return res.reverse().toString();
+    private void replay(char[] cached) {
+        // records the pairs a TransformCache kept for the pwd
+        int p = 0;
+        while (p < cached.length) {
+            boolean noWord = cached[p] == TransformCache.NO_WORD;
+            int wordLength = noWord ? 0 : cached[p];
+            int word = ++p;
+            p += wordLength;
+            int ruleLength = cached[p++];
+            record(noWord ? null : cached, word, wordLength, cached, p, ruleLength);
+            p += ruleLength;
+        }
     }
 
-    private static String getHCPosition(Integer i) {
-        // converts the integer position of a character to the HashCat notation
-        if (i < 10)
-            return i.toString(); // 5 -> 5
+    private void count(char[] word, int off, int len, char[] rule, int ruleOff, int ruleLength) {
+        if (approximateWords != null) {
+            if (word != null)
+                approximateWords.add(word, off, len, weight);
+            approximateRules.add(rule, ruleOff, ruleLength, weight);
+            metrics.pair(false, false);
+        } else {
+            boolean newWord = word != null && words.add(word, off, len, weight) == weight;
+            boolean newRule = rules.add(rule, ruleOff, ruleLength, weight) == weight;
+            metrics.pair(newWord, newRule);
+        }
+        if (pairGroups != null && word != null)
+            addToGroup(word, off, len, rule, ruleOff, ruleLength);
+        if (wordSpill != null && (++recorded & 0x3FF) == 0) {
+            wordSpill.check();
+            ruleSpill.check();
+        }
+        if (debug != null && debug.sample()) {
+            ruleText.setLength(0);
+            RuleBuilder.render(rule, ruleOff, ruleLength, ruleText);
+            debug.row(this.pwd, pwdLength, word, off, len, ruleText);
+        }
+    }
 
-        i = i - 10 + 65;
-        char result = (char) i.intValue(); // 12 ->  C
-        return "" + result;
+    private void addToGroup(char[] word, int off, int len, char[] rule, int ruleOff, int ruleLength) {
+        // pairs are (word length, word, rule length, rule): lengths fit in a char
+        if (len > Character.MAX_VALUE || ruleLength > Character.MAX_VALUE)
+            return;
+        group = ensure(group, groupLength + len + ruleLength + 2);
+        group[groupLength++] = (char) len;
+        System.arraycopy(word, off, group, groupLength, len);
+        groupLength += len;
+        group[groupLength++] = (char) ruleLength;
+        System.arraycopy(rule, ruleOff, group, groupLength, ruleLength);
+        groupLength += ruleLength;
     }
 
     public boolean transform(String pwd) {
+        return transform(pwd, 1);
+    }
+
+    public boolean transform(String pwd, long count) {
+        // count: the multiplicity of pwd (e.g. from a count:password list), the same as count calls to
+        // transform(pwd) but analyzed once
+        checkCount(count);
         if (pwd != null && !pwd.isEmpty()) {
-            pwd = pwd.replace("\\\\", "\\");
-            CharType pwdType = detectMainComponent(pwd);
-
-            String word1 = null, rule1 = null, word2 = null, rule2 = null, word3 = null, rule3 = null;
-
-            if (types.contains(pwdType)) {
-                switch (pwdType) {
-                    case Email: {
-                        String beforeAt = StringUtils.substringBefore(pwd, "@");
-                        String rule = getAugmentEmailRule(StringUtils.substringAfter(pwd, "@"));
-                        //                    record(beforeAt, words);                     //
-                        addToMap(rule, rules);
-                        logDebug(pwd + "::" + rule);
-                        break;
-                    }
-                    case Alpha: {
-                        // (mostly) alphabetic pwds
-
-                        String text = extractPart(pwd, CharType.Alpha);
-                        String lowerText = text.toLowerCase();
-                        String deflated = deflate(lowerText);
-                        int repeat = lowerText.length() / deflated.length() - 1;
-                        String reverse = "";
-                        boolean isReflected = false;
-                        if (repeat == 0) {
-                            reverse = reverseString(lowerText);
-                            isReflected = deflated.equals(reverse) && deflated.length() >= 6 && deflated.length() % 2 == 0;
-                        }
-                        if (isReflected) {
-                            word1 = reverse.substring(0, reverse.length() / 2);
-                        } else if (repeat > 0) {
-                            word1 = deflated;
-                        } else {
-                            StringBuilder rule = new StringBuilder();
-                            word1 = checkCharRepetitions(lowerText, rule, 2);
-                            word2 = checkCharRepetitions(lowerText, rule, 1);
-                        }
-                        rule1 = getAugmentTextRule(text, lowerText, pwd, repeat, isReflected, 2);
+            long start = metrics.start();
+            weight = count;
+            this.pwd = ensure(this.pwd, pwd.length());
+            pwd.getChars(0, pwd.length(), this.pwd, 0);
+            load(pwd.length());
+            analyze();
+            metrics.transformed(start);
+        }
+        return true;
+    }
 
-                        addToMap(word1, words);
-                        addToMap(rule1, rules);
-                        logDebug(pwd + ":" + word1 + ":" + rule1);
+    public boolean transform(char[] chars, int off, int len) {
+        return transform(chars, off, len, 1);
+    }
 
-                        if (word2 != null && !word1.equals(word2)) {
-                            rule2 = getAugmentTextRule(text, lowerText, pwd, repeat, false, 1);
+    public boolean transform(char[] chars, int off, int len, long count) {
+        // entry point for PasswordFileReader: chars[off, off + len) holds one password, seen count times
+        checkCount(count);
+        if (len > 0) {
+            long start = metrics.start();
+            weight = count;
+            pwd = ensure(pwd, len);
+            System.arraycopy(chars, off, pwd, 0, len);
+            load(len);
+            analyze();
+            metrics.transformed(start);
+        }
+        return true;
+    }
 
-                            addToMap(word2, words);
-                            addToMap(rule2, rules);
-                            logDebug(pwd + ":" + word2 + ":" + rule2);
-                        }
+    private static void checkCount(long count) {
+        if (count < 1)
+            throw new IllegalArgumentException("count must be positive: " + count);
+    }
 
-                        String unwrapped = removeWrapper(pwd, CharType.Alpha);
-                        if (unwrapped.length() > 0) {
-                            String replaced = replaceChars(unwrapped);
-                            if (StringUtils.isAlpha(replaced) && !replaced.equals(unwrapped)) {
-                                lowerText = replaced.toLowerCase();
-                                word3 = deflate(lowerText);
-                                rule3 = getConvertTextRule(
-                                        replaced,
-                                        unwrapped,
-                                        pwd,
-                                        lowerText.length() / word3.length() - 1);
-
-                                if (!rule3.isEmpty()) {
-                                    addToMap(word3, words);
-                                    addToMap(rule3, rules);
-                                    logDebug(pwd + ":" + word3 + ":" + rule3);
-                                }
-                            }
-                        }
-                        break;
-                    }
-                    case Numeric: {
-                        // (mostly) numeric pwds
-
-                        //                    if (pwd.equals("***1998***"))
-                        //                        System.out.println("DEBUG");
-                        String num = extractPart(pwd, CharType.Numeric);
-                        boolean mayBeDate = mayBeDate(num);
-                        int repeat = 0;
-                        boolean isReflected = false;
-                        String deflated = num;
-                        if (mayBeDate) {
-                            word1 = num;
-                        } else {
-                            deflated = deflate(num);
-                            repeat = num.length() / deflated.length() - 1;
-                            String reverse = repeat == 0 ? reverseString(num) : "";
-                            isReflected = deflated.equals(reverse) && deflated.length() >= 6 && deflated.length() % 2 == 0;
-                            if (isReflected) {
-                                word1 = reverse.substring(0, reverse.length() / 2);
-                            } else if (repeat > 0) {
-                                word1 = deflated;
-                            } else {
-                                StringBuilder rule = new StringBuilder();
-                                word1 = checkCharRepetitions(num, rule, 1);
-                            }
-                        }
-                        rule1 = getAugmentNumberRule(pwd, deflated, repeat, isReflected, mayBeDate);
+    void analyze(TransformerPipeline.Batch batch) {
+        // pipeline stage: the pairs of the (unescaped, classified) pwds of batch are added to the batch
+        // instead of being counted here
+        pairs = batch;
+        weight = 1;
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                long start = metrics.start();
+                batch.firstPair[i] = batch.pairs;
+                int len = batch.length[i];
+                pwd = ensure(pwd, len);
+                System.arraycopy(batch.chars, batch.start[i], pwd, 0, len);
+                prepare(len);
+                analyze(batch.type[i]);
+                metrics.transformed(start);
+            }
+            batch.firstPair[batch.size] = batch.pairs;
+        } finally {
+            pairs = null;
+        }
+    }
+
+    void aggregate(TransformerPipeline.Batch batch) {
+        // pipeline stage: counts the pairs the analyzers added to batch, pwd by pwd
+        weight = 1;
+        for (int i = 0; i < batch.size; i++) {
+            if (debug != null) {
+                pwd = ensure(pwd, batch.length[i]);
+                System.arraycopy(batch.chars, batch.start[i], pwd, 0, batch.length[i]);
+                pwdLength = batch.length[i];
+            }
+            groupLength = 0;
+            for (int p = batch.firstPair[i]; p < batch.firstPair[i + 1]; p++) {
+                int word = batch.pairStart[p];
+                int wordLength = batch.wordLength[p];
+                int rule = word + Math.max(wordLength, 0);
+                count(wordLength < 0 ? null : batch.pairChars, word, Math.max(wordLength, 0),
+                        batch.pairChars, rule, batch.ruleLength[p]);
+            }
+            if (pairGroups != null && groupLength > 0)
+                pairGroups.add(group, 0, groupLength, weight);
+        }
+    }
+
+    Transformer newAnalyzer(int analyzers) {
+        // a transformer with the same analysis settings, for the analysis stage of TransformerPipeline:
+        // it only keeps what is found along the analysis (verification, segments), to be merged back.
+        // the cache budget is shared among the analyzers, this cache only gets their statistics
+        Transformer analyzer = new Transformer();
+        analyzer.types = types;
+        analyzer.enhancedCopy = enhancedCopy;
+        analyzer.classes = classes;
+        analyzer.dates = dates;
+        analyzer.metrics = metrics;
+        analyzer.setVerification(verification);
+        analyzer.setSegmentation(segments != null);
+        if (leet != null)
+            analyzer.setLeetDecoder(leet.getDecoder());
+        if (cache != null)
+            analyzer.setCache(cache.getMaxBytes() / analyzers);
+        if (emails != null)
+            analyzer.setEmailAnalysis(topDomains, domainMinCount);
+        return analyzer;
+    }
+
+    private void analyze() {
+        analyze(detectMainComponent(pwd, 0, pwdLength));
+    }
+
+    private void analyze(CharType pwdType) {
+        // the password is in pwd[0, pwdLength); the scratch buffers are at least as long.
+        // words are slices of the scratch buffers, rules live in this.rule: nothing becomes a String
+        char[] pwd = this.pwd;
+        groupLength = 0;
+        if (segments != null)
+            segments.analyze(pwd, pwdLength, weight);
+        metrics.branch(pwdType);
+        if (emails != null && pwdType == CharType.Email && types.contains(CharType.Email)) {
+            // the domain goes to the trie, the local part is analyzed as a pwd of its own (base words).
+            // an address followed by a line terminator keeps the literal rule
+            int length = pwdLength;
+            int at = 0;
+            while (pwd[at] != '@') at++;
+            if (EmailAnalyzer.addressEnd(pwd, 0, length) == length) {
+                emails.add(pwd, at + 1, length - at - 1, weight);
+                pwdLength = at;
+                analyzePart(detectMainComponent(pwd, 0, at));
+                pwdLength = length;
+                return;
+            }
+        }
+        analyzePart(pwdType);
+    }
+
+    private void analyzePart(CharType pwdType) {
+        // the analysis of pwd[0, pwdLength) as a pwd of type pwdType
+        char[] pwd = this.pwd;
+        if (cache != null) {
+            char[] cached = cache.get(pwd, pwdLength);
+            if (cached != null) {
+                replay(cached);
+                if (pairGroups != null && groupLength > 0)
+                    pairGroups.add(group, 0, groupLength, weight);
+                return;
+            }
+        }
 
-                        addToMap(word1, words);
-                        addToMap(rule1, rules);
-                        logDebug(pwd + ":" + word1 + ":" + rule1);
-                        break;
+        RuleBuilder rule1, rule2, rule3;
+
+        if (types.contains(pwdType)) {
+            switch (pwdType) {
+                case Email: {
+                    int at = 0;
+                    while (pwd[at] != '@') at++;
+                    RuleBuilder rule = getAugmentEmailRule(at);
+                    //                    record(beforeAt, words);                     //
+                    record(null, 0, 0, rule);
+                    break;
+                }
+                case Alpha: {
+                    // (mostly) alphabetic pwds
+
+                    char[] text = part;
+                    int length = extractPart(CharType.Alpha, text);
+                    char[] lowerText = lower;
+                    toLowerCase(text, length);
+                    int deflated = deflate(lowerText, length);
+                    int repeat = length / deflated - 1;
+                    boolean isReflected = repeat == 0 && isReflected(lowerText, length);
+                    char[] word1 = lowerText;
+                    int length1, length2 = 0;
+                    if (isReflected) {
+                        length1 = length / 2;
+                    } else if (repeat > 0) {
+                        length1 = deflated;
+                    } else {
+                        word1 = word;
+                        length1 = checkCharRepetitions(lowerText, length, null, 2, word1);
+                        length2 = checkCharRepetitions(lowerText, length, null, 1, word2);
                     }
-                    default: {
-                        // very mixed chars
+                    rule1 = getAugmentTextRule(text, lowerText, length, repeat, isReflected, 2);
+                    record(word1, 0, length1, rule1);
 
-                        String symbols = extractPart(pwd, CharType.Symbol);
-                        String deflated = deflate(symbols);
-                        int repeat = symbols.length() / deflated.length() - 1;
-                        String reverse = repeat == 0 ? reverseString(symbols) : "";
-                        boolean isReflected = deflated.equals(reverse) && deflated.length() >= 6 && deflated.length() % 2 == 0;
+                    if (length2 > 0 && length2 != length1) {
+                        rule2 = getAugmentTextRule(text, lowerText, length, repeat, false, 1);
+                        record(word2, 0, length2, rule2);
+                    }
 
+                    int unwrapped = removeWrapper(CharType.Alpha);
+                    rule3 = unwrapped > 0 && leet != null ? getLeetRule(unwrapStart, unwrapped) : null;
+                    if (rule3 != null) {
+                        record(converted, 0, leetLength, rule3);
+                    } else if (unwrapped > 0) {
+                        int replaced = replaceChars(unwrapStart, unwrapped, converted);
+                        if (replaced > 0) {
+                            length = toLowerCase(converted, replaced);
+                            deflated = deflate(lower, length);
+                            rule3 = getConvertTextRule(
+                                    converted,
+                                    replaced,
+                                    unwrapStart,
+                                    length / deflated - 1);
+                            metrics.converted(rule3 != null);
+
+                            if (rule3 != null) {
+                                record(lower, 0, deflated, rule3);
+                            }
+                        }
+                    }
+                    break;
+                }
+                case Numeric: {
+                    // (mostly) numeric pwds
+
+                    //                    if (pwd.equals("***1998***"))
+                    //                        System.out.println("DEBUG");
+                    char[] num = part;
+                    int length = extractPart(CharType.Numeric, num);
+                    boolean mayBeDate = dates.mayBeDate(num, 0, length);
+                    metrics.date(mayBeDate);
+                    int repeat = 0;
+                    boolean isReflected = false;
+                    int deflated = length;
+                    char[] word1 = num;
+                    int length1;
+                    if (mayBeDate) {
+                        length1 = length;
+                    } else {
+                        deflated = deflate(num, length);
+                        repeat = length / deflated - 1;
+                        isReflected = repeat == 0 && isReflected(num, length);
                         if (isReflected) {
-                            word1 = reverse.substring(0, reverse.length() / 2);
+                            length1 = length / 2;
+                        } else if (repeat > 0) {
+                            length1 = deflated;
                         } else {
-                            word1 = deflated;
+                            word1 = word;
+                            length1 = checkCharRepetitions(num, length, null, 1, word1);
                         }
-
-                        rule1 = getAugmentSymbolRule(pwd, repeat, isReflected);
-                        addToMap(word1, words);
-                        addToMap(rule1, rules);
-                        logDebug(pwd + ":" + word1 + ":" + rule1);
-                        break;
                     }
+                    rule1 = getAugmentNumberRule(num, deflated, repeat, isReflected, mayBeDate);
+                    record(word1, 0, length1, rule1);
+                    break;
+                }
+                default: {
+                    // very mixed chars
+
+                    char[] symbols = part;
+                    int length = extractPart(CharType.Symbol, symbols);
+                    int deflated = deflate(symbols, length);
+                    int repeat = length / deflated - 1;
+                    boolean isReflected = repeat == 0 && isReflected(symbols, length);
+
+                    rule1 = getAugmentSymbolRule(repeat, isReflected);
+                    record(symbols, 0, isReflected ? length / 2 : deflated, rule1);
+                    break;
                 }
             }
         }
-        return true;
+        if (cache != null)
+            cache.put();
+        if (pairGroups != null && groupLength > 0)
+            pairGroups.add(group, 0, groupLength, weight);
     }
 
     public Map<String, Integer> getWords() {
-        return words;
+        if (approximateWords != null)
+            return approximateWords.asMap();
+        checkInMemory(wordSpill);
+        return words.asMap();
     }
 
     public Map<String, Integer> getRules() {
+        if (approximateRules != null)
+            return approximateRules.asMap();
+        checkInMemory(ruleSpill);
+        return rules.asMap();
+    }
+
+    private static void checkInMemory(SpillingCounter spill) {
+        if (spill != null && spill.isSpilled())
+            throw new IllegalStateException("the counters have been spilled to disk: use writeWords/writeRules");
+    }
+
+    public void writeWords(File file) throws IOException {
+        // one word per line, by decreasing frequency; works in every counting mode
+        write(words, wordSpill, approximateWords, file);
+    }
+
+    public void writeRules(File file) throws IOException {
+        write(rules, ruleSpill, approximateRules, file);
+    }
+
+    public long writeWords(File file, CountWriter writer) throws IOException {
+        // with cutoffs and formats, e.g. new CountWriter().setMinCount(2).setHex(true); returns the lines written
+        return write(words, wordSpill, approximateWords, file, writer);
+    }
+
+    public long writeRules(File file, CountWriter writer) throws IOException {
+        return write(rules, ruleSpill, approximateRules, file, writer);
+    }
+
+    public void writeWordEstimates(File file) throws IOException {
+        // approximate mode: count, error and word per line
+        writeEstimates(approximateWords, file);
+    }
+
+    public void writeRuleEstimates(File file) throws IOException {
+        writeEstimates(approximateRules, file);
+    }
+
+    private static void write(CompactCounter counter, SpillingCounter spill, ApproximateCounter approximate, File file) throws IOException {
+        write(counter, spill, approximate, file, new CountWriter());
+    }
+
+    private static long write(CompactCounter counter, SpillingCounter spill, ApproximateCounter approximate, File file, CountWriter writer) throws IOException {
+        if (spill != null)
+            return spill.writeByCount(file, writer);
+        try (CountWriter.Output out = writer.open(file)) {
+            if (approximate != null)
+                approximate.writeByCount(out);
+            else
+                counter.writeByCount(out);
+            return out.getLines();
+        }
+    }
+
+    private static void writeEstimates(ApproximateCounter approximate, File file) throws IOException {
+        if (approximate == null)
+            throw new IllegalStateException("estimates are only available in approximate mode");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            approximate.writeEstimates(out);
+        }
+    }
+
+    public CompactCounter getWordCounter() {
+        return words;
+    }
+
+    public CompactCounter getRuleCounter() {
         return rules;
     }
 
+    public List<String> topWords(int k) {
+        // the k most frequent words (e.g. for RuleScorer)
+        return top(words, wordSpill, approximateWords, k);
+    }
+
+    public List<String> topRules(int k) {
+        return top(rules, ruleSpill, approximateRules, k);
+    }
+
+    private static List<String> top(CompactCounter counter, SpillingCounter spill, ApproximateCounter approximate, int k) {
+        List<String> top = new ArrayList<>(k);
+        if (approximate != null) {
+            for (ApproximateCounter.Estimate estimate : approximate.top()) {
+                if (top.size() == k)
+                    break;
+                top.add(estimate.key);
+            }
+        } else {
+            // only the first k are sorted by key and turned into Strings, ties by key as in the output
+            checkInMemory(spill);
+            for (int address : counter.addressesByCount(1, k))
+                top.add(counter.key(address));
+        }
+        return top;
+    }
+
+    public long getVerified() {
+        // pairs checked by the verification
+        return verified;
+    }
+
+    public Map<String, Integer> getMismatches() {
+        // the rules that did not give back their pwd, with the number of pairs
+        return getMismatchCounter().asMap();
+    }
+
+    private CompactCounter getMismatchCounter() {
+        if (mismatches == null)
+            mismatches = newRuleCounter(1024);
+        return mismatches;
+    }
+
+    public ApproximateCounter getApproximateWords() {
+        return approximateWords;
+    }
+
+    public ApproximateCounter getApproximateRules() {
+        return approximateRules;
+    }
+
     public void setEnhancedCopy(boolean value) {
         enhancedCopy = value;
     }
+
+    public void setUnicodeLetters(boolean value) {
+        // letters of any script are analyzed as letters (Alpha branch) instead of symbols (see CharClass)
+        classes = value ? CharClass.UNICODE : CharClass.ASCII;
+    }
+
+    public void setEmailAnalysis(int topDomains, long minCount) {
+        // email pwds: the local part is analyzed as a pwd (for its words and rules), the domain is counted
+        // by an EmailAnalyzer instead of becoming a rule. finished() adds the rules of the topDomains most
+        // frequent domains seen at least minCount times; 0 turns it off
+        emails = topDomains > 0 ? new EmailAnalyzer() : null;
+        this.topDomains = topDomains;
+        this.domainMinCount = minCount;
+    }
+
+    public EmailAnalyzer getEmailAnalyzer() {
+        return emails;
+    }
+
+    int getTopDomains() {
+        return emails == null ? 0 : topDomains;
+    }
+
+    long getDomainMinCount() {
+        return domainMinCount;
+    }
+
+    void deferDomainRules() {
+        // finished() leaves the domain rules to the caller, which counts the domains of several
+        // Transformers (PartitionedRun picks the top domains of all the workers)
+        domainRulesAdded = true;
+    }
+
+    private void addDomainRules() {
+        // the append rules of the top domains, counted once per email
+        for (Map.Entry<String, Long> domain : emails.topDomains(topDomains, domainMinCount)) {
+            EmailAnalyzer.domainRule(domain.getKey(), rule);
+            if (approximateRules != null)
+                approximateRules.add(rule.ops(), 0, rule.length(), domain.getValue());
+            else
+                rules.add(rule.ops(), 0, rule.length(), domain.getValue());
+        }
+    }
+
+    public void setCoverageTracking(boolean value) {
+        // records the pairs of every pwd for the CoverageOptimizer (one key per distinct pwd)
+        pairGroups = value ? new CompactCounter() : null;
+    }
+
+    public CoverageOptimizer getCoverageOptimizer() {
+        if (pairGroups == null)
+            throw new IllegalStateException("coverage tracking is off: see setCoverageTracking");
+        return new CoverageOptimizer(pairGroups);
+    }
+
+    public void setSegmentation(boolean value) {
+        // the pwds are also split into words, masks and dates (see SegmentAnalyzer)
+        segments = value ? new SegmentAnalyzer() : null;
+    }
+
+    public SegmentAnalyzer getSegments() {
+        return segments;
+    }
+
+    public void setLeetDecoder(LeetDecoder decoder) {
+        // words in leetspeak are decoded with the dictionary of the decoder instead of the fixed
+        // REPLACEABLE/REPLACED table (which stays the fallback); null turns it off
+        leet = decoder == null ? null : new LeetDecoder.Memo(decoder, 1 << 16);
+    }
+
+    public LeetDecoder.Memo getLeetMemo() {
+        return leet;
+    }
+
+    public void setCache(long maxBytes) {
+        // memoizes the pairs of the recent pwds in about maxBytes (see TransformCache), for input with
+        // repeated pwds; 0 turns it off
+        cache = maxBytes > 0 ? new TransformCache(maxBytes) : null;
+    }
+
+    public TransformCache getCache() {
+        return cache;
+    }
+
+    public void setMetrics(TransformerMetrics metrics) {
+        // instrumentation of transform (see TransformerMetrics), may be shared; null turns it off
+        this.metrics = metrics == null ? TransformerMetrics.NONE : metrics;
+    }
+
+    public void setVerification(Verification mode) {
+        verification = mode;
+        if (mode != Verification.None && engine == null)
+            engine = new RuleEngine();
+    }
+
+    public void setDateFormats(Set<DateDetector.Format> formats) {
+        // date formats recognized in numeric pwds (DateDetector.DEFAULT_FORMATS by default)
+        dates = new DateDetector(formats);
+    }
+    public void setApproximate(int topWords, int topRules, double epsilon, double delta) {
+        // constant memory counting: topWords/topRules keys are monitored (keep them a few times the
+        // number of entries that will be shipped), sketch estimates are within epsilon * total with probability 1 - delta
+        if (wordSpill != null)
+            throw new IllegalStateException("approximate mode and spill mode cannot be combined");
+        approximateWords = new ApproximateCounter(topWords, epsilon, delta);
+        approximateRules = new ApproximateCounter(topRules, epsilon, delta);
+        approximateRules.setKeyFormat(RuleBuilder.FORMAT);
+        words = new CompactCounter();
+        rules = newRuleCounter(1024);
+    }
+
+    public void setSpill(File dir, long memoryBudget) {
+        // bounds the memory of the counters to about memoryBudget bytes (half each):
+        // beyond that, they are spilled to dir as sorted runs and merged by finished()
+        if (approximateWords != null)
+            throw new IllegalStateException("approximate mode and spill mode cannot be combined");
+        if (words.size() > 0 || rules.size() > 0)
+            throw new IllegalStateException("spill mode must be set before transforming");
+        // the counters are sized for the budget: their empty table must not fill it already
+        int expectedKeys = spillKeys(memoryBudget);
+        words = new CompactCounter(expectedKeys);
+        rules = newRuleCounter(expectedKeys);
+        wordSpill = new SpillingCounter(words, dir, "words", memoryBudget / 2);
+        ruleSpill = new SpillingCounter(rules, dir, "rules", memoryBudget / 2);
+    }
+
+    static int spillKeys(long memoryBudget) {
+        // the initial keys of a counter of a spill budget (about 64 bytes of budget per key), rejecting the
+        // budgets that cannot hold a counter twice: every spill would write a near-empty run
+        int expectedKeys = (int) Math.min(500000, memoryBudget / 2 / 64);
+        long minimum = 2 * 2 * CompactCounter.footprint(expectedKeys);
+        if (memoryBudget < minimum)
+            throw new IllegalArgumentException("spill budget too small: " + memoryBudget + " bytes, at least "
+                    + minimum + " (per transformer)");
+        return expectedKeys;
+    }
+
+    public void close() {
+        // deletes the spilled runs still on disk (after a failure, or if the counts are not written)
+        if (wordSpill != null) {
+            wordSpill.close();
+            ruleSpill.close();
+        }
+    }
+
     public void setDebug(File debug) {
+        setDebug(debug, false, 1);
+    }
+
+    public void setDebug(File debug, boolean compress, int sampling) {
+        // rows are written by a background thread; compress gzips the log, sampling = n keeps one row every n
         try {
-            this.debug = new BufferedOutputStream(new FileOutputStream(debug));
+            this.debugSink = new DebugSink(debug, compress);
         } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        this.debug = debugSink.producer(sampling);
+    }
+
+    void setDebug(DebugSink sink, int sampling) {
+        // shares a sink opened by someone else (e.g. ParallelTransformer), who will close it
+        this.debugSink = null;
+        this.debug = sink.producer(sampling);
+    }
+
+    void flushDebug() {
+        if (debug != null)
+            debug.flush();
     }
 
     public void logDebug(String row) {
-        if (this.debug != null)
-            try {
-                this.debug.write(row.getBytes());
-                this.debug.write("\n".getBytes());
-            } catch (IOException e) {
-            }
+        if (debug != null && debug.sample())
+            debug.row(row);
     }
 
 }
@@ -0,0 +1,399 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class TransformerBenchmark {
+
+    // usage: java it.unive.secgroup.TransformerBenchmark [-o results.json] [-n lines] [-w warmups] [-i iterations]
+    //                                                    [-t millis per iteration] [-threads n] [-f name filter]
+    // results are written as JSON, in the same layout produced by JMH (-rf json),
+    // with the allocated bytes per operation reported as the gc.alloc.rate.norm secondary metric
+
+    private static final int SAMPLES = 1 << 16;
+    private static final long CACHE_BYTES = 64L << 20;
+
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int lines = 10000000;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String filter = "";
+    private final List<String> results = new ArrayList<>();
+    private volatile long sink;
+
+    public static void main(String[] args) throws IOException {
+        TransformerBenchmark benchmark = new TransformerBenchmark();
+        File output = new File("benchmark.json");
+        for (int a = 0; a + 1 < args.length; a += 2) {
+            switch (args[a]) {
+                case "-o": output = new File(args[a + 1]); break;
+                case "-n": benchmark.lines = Integer.parseInt(args[a + 1]); break;
+                case "-w": benchmark.warmups = Integer.parseInt(args[a + 1]); break;
+                case "-i": benchmark.iterations = Integer.parseInt(args[a + 1]); break;
+                case "-t": benchmark.iterationMillis = Long.parseLong(args[a + 1]); break;
+                case "-threads": benchmark.threads = Integer.parseInt(args[a + 1]); break;
+                case "-f": benchmark.filter = args[a + 1]; break;
+                default: throw new IllegalArgumentException("unknown option " + args[a]);
+            }
+        }
+        benchmark.runAll();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            writer.write(benchmark.toJson());
+        }
+        System.out.println("results written to " + output);
+    }
+
+    private interface Operation {
+        // runs one operation on the i-th sample, returns something to keep the JIT honest
+        long run(int i);
+    }
+
+    private void runAll() throws IOException {
+        final Generator generator = new Generator(42);
+
+        // per-branch benchmarks: one transform() per op over passwords of that branch
+        for (final Transformer.CharType type : Transformer.CharType.values()) {
+            final String[] samples = generator.samples(type, SAMPLES);
+            final Transformer transformer = new Transformer();
+            measure("transform." + type, new Operation() {
+                @Override
+                public long run(int i) {
+                    transformer.transform(samples[i & (SAMPLES - 1)]);
+                    return transformer.getRules().size();
+                }
+            });
+        }
+        final String[] mixed = generator.samples(null, SAMPLES);
+        final Transformer mixedTransformer = new Transformer();
+        measure("transform.Mixed", new Operation() {
+            @Override
+            public long run(int i) {
+                mixedTransformer.transform(mixed[i & (SAMPLES - 1)]);
+                return mixedTransformer.getRules().size();
+            }
+        });
+        // the same with the instrumentation on: the price of TransformerMetrics when enabled
+        final Transformer metricsTransformer = new Transformer();
+        metricsTransformer.setMetrics(new TransformerMetrics());
+        measure("transform.Mixed.metrics", new Operation() {
+            @Override
+            public long run(int i) {
+                metricsTransformer.transform(mixed[i & (SAMPLES - 1)]);
+                return metricsTransformer.getRules().size();
+            }
+        });
+
+        // micro-benchmarks of the hot helpers
+        final String[] numbers = generator.numbers(SAMPLES, 8);
+        measure("mayBeDate", new Operation() {
+            @Override
+            public long run(int i) {
+                return Transformer.mayBeDate(numbers[i & (SAMPLES - 1)]) ? 1 : 0;
+            }
+        });
+        final String[] repeated = generator.repeated(SAMPLES);
+        measure("deflate", new Operation() {
+            @Override
+            public long run(int i) {
+                return Transformer.deflate(repeated[i & (SAMPLES - 1)]).length();
+            }
+        });
+        final String[] alpha = generator.samples(Transformer.CharType.Alpha, SAMPLES);
+        final Transformer helper = new Transformer();
+        final StringBuilder rule = new StringBuilder();
+        measure("checkCharRepetitions", new Operation() {
+            @Override
+            public long run(int i) {
+                rule.setLength(0);
+                return helper.checkCharRepetitions(alpha[i & (SAMPLES - 1)], rule, 1).length() + rule.length();
+            }
+        });
+        final String[] leet = generator.leet(SAMPLES);
+        measure("getConvertTextRule", new Operation() {
+            @Override
+            public long run(int i) {
+                return helper.getConvertTextRule(leet[i & (SAMPLES - 1)]).length();
+            }
+        });
+        final String[] emails = generator.samples(Transformer.CharType.Email, SAMPLES);
+        measure("isEmail", new Operation() {
+            @Override
+            public long run(int i) {
+                return helper.isEmail(i % 2 == 0 ? emails[i & (SAMPLES - 1)] : mixed[i & (SAMPLES - 1)]) ? 1 : 0;
+            }
+        });
+
+        if (matches("throughput"))
+            throughput(generator);
+    }
+
+    private boolean matches(String name) {
+        return name.contains(filter);
+    }
+
+    private void measure(String name, Operation operation) {
+        if (!matches(name))
+            return;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        double[] scores = new double[iterations];
+        double allocated = 0;
+        long ops = 0;
+        int i = 0;
+        for (int it = -warmups; it < iterations; it++) {
+            long bytes = mx.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long deadline = start + iterationMillis * 1000000L;
+            long count = 0;
+            long now;
+            do {
+                for (int k = 0; k < 1024; k++)
+                    sink += operation.run(i++);
+                count += 1024;
+            } while ((now = System.nanoTime()) < deadline);
+            if (it >= 0) {
+                scores[it] = count * 1e9 / (now - start);
+                allocated += mx.getThreadAllocatedBytes(thread) - bytes;
+                ops += count;
+            }
+        }
+        addResult(name, "ops/s", scores, allocated / ops);
+    }
+
+    private void throughput(Generator generator) throws IOException {
+        // end-to-end: passwords/sec over a synthetic corpus file, single-threaded and parallel
+        File corpus = File.createTempFile("corpus", ".txt");
+        corpus.deleteOnExit();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(corpus), 1 << 20)) {
+            for (int l = 0; l < lines; l++) {
+                out.write(generator.next(null).getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+        double[] single = new double[iterations];
+        double[] parallel = new double[iterations];
+        double[] pipelined = new double[iterations];
+        double[] cached = new double[iterations];
+        TransformerPipeline pipeline = null;
+        TransformCache cache = null;
+        for (int it = -Math.min(warmups, 1); it < iterations; it++) {
+            long start = System.nanoTime();
+            final Transformer transformer = new Transformer();
+            try (PasswordFileReader reader = new PasswordFileReader(corpus)) {
+                reader.read(new PasswordFileReader.LineConsumer() {
+                    @Override
+                    public void accept(char[] chars, int off, int len) {
+                        transformer.transform(chars, off, len);
+                    }
+                });
+            }
+            long middle = System.nanoTime();
+            ParallelTransformer parallelTransformer = new ParallelTransformer(threads);
+            parallelTransformer.transform(corpus);
+            long end = System.nanoTime();
+            // read, classify and aggregate take a thread each
+            Transformer pipelineTransformer = new Transformer();
+            pipeline = new TransformerPipeline(pipelineTransformer, Math.max(1, threads - 2));
+            pipeline.transform(corpus);
+            long pipelineEnd = System.nanoTime();
+            // single-threaded again, the repeated passwords replayed from a TransformCache
+            final Transformer cachedTransformer = new Transformer();
+            cachedTransformer.setCache(CACHE_BYTES);
+            try (PasswordFileReader reader = new PasswordFileReader(corpus)) {
+                reader.read(new PasswordFileReader.LineConsumer() {
+                    @Override
+                    public void accept(char[] chars, int off, int len) {
+                        cachedTransformer.transform(chars, off, len);
+                    }
+                });
+            }
+            long cachedEnd = System.nanoTime();
+            cache = cachedTransformer.getCache();
+            sink += transformer.getRules().size() + parallelTransformer.getRules().size() + pipelineTransformer.getRules().size()
+                    + cachedTransformer.getRules().size();
+            if (it >= 0) {
+                single[it] = lines * 1e9 / (middle - start);
+                parallel[it] = lines * 1e9 / (end - middle);
+                pipelined[it] = lines * 1e9 / (pipelineEnd - end);
+                cached[it] = lines * 1e9 / (cachedEnd - pipelineEnd);
+            }
+        }
+        addResult("throughput.single", "passwords/s", single, Double.NaN);
+        addResult("throughput.parallel-" + threads, "passwords/s", parallel, Double.NaN);
+        addResult("throughput.pipeline-" + threads, "passwords/s", pipelined, Double.NaN);
+        addResult("throughput.cached", "passwords/s", cached, Double.NaN);
+        // where the time went in the last pipelined run
+        for (TransformerPipeline.Stage stage : pipeline.getStages())
+            System.out.println(stage);
+        System.out.println("cache: " + cache);
+        corpus.delete();
+    }
+
+    private void addResult(String name, String unit, double[] scores, double bytesPerOp) {
+        double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        // 99.9% confidence half-interval, as reported by JMH (normal approximation)
+        double error = scores.length > 1 ? 3.29 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+
+        StringBuilder json = new StringBuilder();
+        json.append("  {\n    \"benchmark\" : \"").append(TransformerBenchmark.class.getName()).append('.').append(name).append("\",\n")
+            .append("    \"mode\" : \"thrpt\",\n    \"threads\" : 1,\n    \"forks\" : 0,\n")
+            .append("    \"warmupIterations\" : ").append(warmups).append(",\n")
+            .append("    \"measurementIterations\" : ").append(iterations).append(",\n")
+            .append("    \"primaryMetric\" : {\n      \"score\" : ").append(number(mean))
+            .append(",\n      \"scoreError\" : ").append(number(error))
+            .append(",\n      \"scoreUnit\" : \"").append(unit).append("\",\n      \"rawData\" : [ [ ");
+        for (int i = 0; i < scores.length; i++)
+            json.append(i == 0 ? "" : ", ").append(number(scores[i]));
+        json.append(" ] ]\n    },\n    \"secondaryMetrics\" : {");
+        if (!Double.isNaN(bytesPerOp))
+            json.append("\n      \"gc.alloc.rate.norm\" : {\n        \"score\" : ").append(number(bytesPerOp))
+                .append(",\n        \"scoreUnit\" : \"B/op\"\n      }\n    ");
+        json.append("}\n  }");
+        results.add(json.toString());
+        System.out.printf("%-40s %16.1f +- %-12.1f %s%s%n", name, mean, error, unit,
+                Double.isNaN(bytesPerOp) ? "" : String.format("   %8.1f B/op", bytesPerOp));
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++)
+            json.append(results.get(i)).append(i + 1 < results.size() ? ",\n" : "\n");
+        return json.append("]\n").toString();
+    }
+
+    private static class Generator {
+        // synthetic passwords with roughly the shape of rockyou:
+        // words with digits/symbols around, pure numbers (PINs, dates), a few emails and symbol soups
+        private static final String[] WORDS = {"password", "iloveyou", "princess", "rockyou", "abc", "nicole",
+                "daniel", "babygirl", "monkey", "lovely", "jessica", "michael", "ashley", "qwerty", "dragon",
+                "sunshine", "chocolate", "anthony", "angel", "football", "baseball", "superman", "loveme",
+                "hello", "letmein", "shadow", "master", "soccer", "purple", "batman", "tigger", "hannah"};
+        private static final String[] DOMAINS = {"gmail.com", "yahoo.com", "hotmail.com", "aol.com", "live.it",
+                "msn.com", "yahoo.co.uk", "libero.it"};
+        private static final String SYMBOLS = "!@#$%^&*()_-+=.,;:?/~";
+        private static final String LEET_FROM = "oizeasbtg";
+        private static final String LEET_TO   = "01234$8+9";
+        private final Random random;
+
+        Generator(long seed) {
+            random = new Random(seed);
+        }
+
+        String[] samples(Transformer.CharType type, int n) {
+            String[] samples = new String[n];
+            for (int i = 0; i < n; i++)
+                samples[i] = next(type);
+            return samples;
+        }
+
+        String next(Transformer.CharType type) {
+            if (type == null) {
+                int p = random.nextInt(100);
+                type = p < 60 ? Transformer.CharType.Alpha
+                     : p < 85 ? Transformer.CharType.Numeric
+                     : p < 98 ? Transformer.CharType.Symbol
+                     : Transformer.CharType.Email;
+            }
+            String word = WORDS[random.nextInt(WORDS.length)];
+            switch (type) {
+                case Alpha: {
+                    int p = random.nextInt(10);
+                    if (p < 3) return word;
+                    if (p < 6) return word + random.nextInt(p < 5 ? 100 : 10000);
+                    if (p < 7) return capitalize(word) + SYMBOLS.charAt(random.nextInt(SYMBOLS.length()));
+                    if (p < 8) return word + word;
+                    if (p < 9) return leet(word);
+                    return word.toUpperCase() + random.nextInt(10);
+                }
+                case Numeric: {
+                    int p = random.nextInt(10);
+                    if (p < 3) return date();
+                    if (p < 5) return digits(6, 8);
+                    if (p < 7) return repeat(digits(1, 3), 2 + random.nextInt(3));
+                    if (p < 8) return word.substring(0, 2) + digits(6, 6);
+                    return digits(4, 12);
+                }
+                case Symbol: {
+                    StringBuilder s = new StringBuilder();
+                    int length = 3 + random.nextInt(8);
+                    for (int i = 0; i < length; i++)
+                        s.append(i % 3 == 0 ? (char) ('a' + random.nextInt(26))
+                               : i % 3 == 1 ? (char) ('0' + random.nextInt(10))
+                               : SYMBOLS.charAt(random.nextInt(SYMBOLS.length())));
+                    return random.nextBoolean() ? s.toString() : repeat("" + SYMBOLS.charAt(random.nextInt(SYMBOLS.length())), length);
+                }
+                default:
+                    return word + (random.nextBoolean() ? "" : "" + random.nextInt(100)) + "@" + DOMAINS[random.nextInt(DOMAINS.length)];
+            }
+        }
+
+        String[] numbers(int n, int length) {
+            String[] samples = new String[n];
+            for (int i = 0; i < n; i++)
+                samples[i] = random.nextInt(3) == 0 ? date() : digits(length, length);
+            return samples;
+        }
+
+        String[] repeated(int n) {
+            String[] samples = new String[n];
+            for (int i = 0; i < n; i++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                samples[i] = random.nextBoolean() ? repeat(word.substring(0, 1 + random.nextInt(word.length())), 2 + random.nextInt(4)) : word + random.nextInt(1000);
+            }
+            return samples;
+        }
+
+        String[] leet(int n) {
+            String[] samples = new String[n];
+            for (int i = 0; i < n; i++)
+                samples[i] = leet(WORDS[random.nextInt(WORDS.length)]) + (random.nextBoolean() ? "" : "" + random.nextInt(100));
+            return samples;
+        }
+
+        private String leet(String word) {
+            StringBuilder s = new StringBuilder(word.length());
+            for (char c : word.toCharArray()) {
+                int p = LEET_FROM.indexOf(c);
+                s.append(p >= 0 && random.nextBoolean() ? LEET_TO.charAt(p) : c);
+            }
+            return s.toString();
+        }
+
+        private String date() {
+            int day = 1 + random.nextInt(28), month = 1 + random.nextInt(12), year = 1940 + random.nextInt(80);
+            return random.nextBoolean()
+                    ? String.format("%02d%02d%04d", day, month, year)
+                    : String.format("%04d%02d%02d", year, month, day);
+        }
+
+        private String digits(int min, int max) {
+            int length = min + random.nextInt(max - min + 1);
+            char[] digits = new char[length];
+            for (int i = 0; i < length; i++)
+                digits[i] = (char) ('0' + random.nextInt(10));
+            return new String(digits);
+        }
+
+        private static String repeat(String s, int times) {
+            StringBuilder r = new StringBuilder(s.length() * times);
+            for (int i = 0; i < times; i++)
+                r.append(s);
+            return r.toString();
+        }
+
+        private static String capitalize(String s) {
+            return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+        }
+    }
+}
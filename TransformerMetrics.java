@@ -0,0 +1,395 @@
+package it.unive.secgroup;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class TransformerMetrics implements TransformerMetricsMBean, Closeable {
+
+    // what happens inside transform: pwds per branch, latency, getConvertTextRule aborts, mayBeDate hits,
+    // and how fast words and rules grow (keys new to the in-memory counters: per worker, before merging).
+    // one instance can be shared by all the workers: counters are striped (LongAdder), and so is the
+    // latency histogram (log-linear buckets, ~3% precision, as HdrHistogram does).
+    // a Transformer without metrics uses NONE, whose hooks are empty: the calls are inlined away by the
+    // JIT, nothing is checked in the hot path. NONE records nothing (no counters at all), so it stays
+    // inside the package: setMetrics(null) is how callers turn the metrics off.
+    // results: periodic progress lines (startProgress), a JSON report (writeJson) and a JMX MBean (register)
+
+    static final TransformerMetrics NONE = new TransformerMetrics(false) {
+        @Override
+        long start() {
+            return 0;
+        }
+
+        @Override
+        void transformed(long start) {
+        }
+
+        @Override
+        void branch(Transformer.CharType type) {
+        }
+
+        @Override
+        void converted(boolean success) {
+        }
+
+        @Override
+        void date(boolean hit) {
+        }
+
+        @Override
+        void pair(boolean newWord, boolean newRule) {
+        }
+    };
+
+    private final long created = System.nanoTime();
+    private final LongAdder[] branches;
+    private final LongAdder conversions, aborts;
+    private final LongAdder dateChecks, dateHits;
+    private final LongAdder pairs, newWords, newRules;
+    private final Histogram latency;
+    private final List<long[]> timeline = new ArrayList<>();
+    private ScheduledExecutorService progress;
+    private ObjectName registered;
+
+    public TransformerMetrics() {
+        this(true);
+    }
+
+    private TransformerMetrics(boolean enabled) {
+        branches = new LongAdder[Transformer.CharType.values().length];
+        for (int i = 0; enabled && i < branches.length; i++)
+            branches[i] = new LongAdder();
+        conversions = enabled ? new LongAdder() : null;
+        aborts = enabled ? new LongAdder() : null;
+        dateChecks = enabled ? new LongAdder() : null;
+        dateHits = enabled ? new LongAdder() : null;
+        pairs = enabled ? new LongAdder() : null;
+        newWords = enabled ? new LongAdder() : null;
+        newRules = enabled ? new LongAdder() : null;
+        latency = enabled ? new Histogram() : null;
+    }
+
+    // hooks, called by the Transformer
+
+    long start() {
+        return System.nanoTime();
+    }
+
+    void transformed(long start) {
+        latency.record(System.nanoTime() - start);
+    }
+
+    void branch(Transformer.CharType type) {
+        branches[type.ordinal()].increment();
+    }
+
+    void converted(boolean success) {
+        // a getConvertTextRule call: false when it aborts (no rule)
+        conversions.increment();
+        if (!success)
+            aborts.increment();
+    }
+
+    void date(boolean hit) {
+        dateChecks.increment();
+        if (hit)
+            dateHits.increment();
+    }
+
+    void pair(boolean newWord, boolean newRule) {
+        pairs.increment();
+        if (newWord)
+            newWords.increment();
+        if (newRule)
+            newRules.increment();
+    }
+
+    // results
+
+    public long getPasswords() {
+        return latency.count();
+    }
+
+    public long getBranch(Transformer.CharType type) {
+        return branches[type.ordinal()].sum();
+    }
+
+    public long getAlpha() {
+        return getBranch(Transformer.CharType.Alpha);
+    }
+
+    public long getNumeric() {
+        return getBranch(Transformer.CharType.Numeric);
+    }
+
+    public long getSymbol() {
+        return getBranch(Transformer.CharType.Symbol);
+    }
+
+    public long getEmail() {
+        return getBranch(Transformer.CharType.Email);
+    }
+
+    public long getConversions() {
+        return conversions.sum();
+    }
+
+    public long getConversionAborts() {
+        return aborts.sum();
+    }
+
+    public long getDateChecks() {
+        return dateChecks.sum();
+    }
+
+    public long getDateHits() {
+        return dateHits.sum();
+    }
+
+    public long getPairs() {
+        return pairs.sum();
+    }
+
+    public long getNewWords() {
+        return newWords.sum();
+    }
+
+    public long getNewRules() {
+        return newRules.sum();
+    }
+
+    public Histogram getLatency() {
+        // nanoseconds per transform
+        return latency;
+    }
+
+    public long getLatencyP50Nanos() {
+        return latency.percentile(0.5);
+    }
+
+    public long getLatencyP99Nanos() {
+        return latency.percentile(0.99);
+    }
+
+    public long getLatencyMaxNanos() {
+        return latency.max();
+    }
+
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - created) / 1e9;
+    }
+
+    public double getThroughput() {
+        // pwds per second since the metrics were created
+        return getPasswords() / getElapsedSeconds();
+    }
+
+    public synchronized void startProgress(final PrintStream out, long period, TimeUnit unit) {
+        // a progress line every period, until close()
+        checkEnabled();
+        if (progress != null)
+            throw new IllegalStateException("progress already started");
+        progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "metrics-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        progress.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                out.println(progressLine());
+            }
+        }, period, period, unit);
+    }
+
+    synchronized String progressLine() {
+        // also records a point of the timeline
+        long[] last = timeline.isEmpty() ? new long[5] : timeline.get(timeline.size() - 1);
+        long[] now = {System.nanoTime() - created, getPasswords(), getPairs(), getNewWords(), getNewRules()};
+        timeline.add(now);
+        double seconds = now[0] / 1e9;
+        double recent = (now[1] - last[1]) / ((now[0] - last[0]) / 1e9);
+        return String.format(Locale.ROOT, "%.1fs: %d pwds, %.0f pwds/s (last %.0f/s), %d new words, %d new rules, latency p50 %.2fus p99 %.2fus",
+                seconds, now[1], now[1] / seconds, recent, now[3], now[4],
+                latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3);
+    }
+
+    public synchronized String toJson() {
+        long elapsed = System.nanoTime() - created;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"elapsedMillis\" : ").append(elapsed / 1000000)
+            .append(",\n  \"passwords\" : ").append(getPasswords())
+            .append(",\n  \"passwordsPerSecond\" : ").append(number(getPasswords() / (elapsed / 1e9)))
+            .append(",\n  \"branches\" : {");
+        for (Transformer.CharType type : Transformer.CharType.values())
+            json.append(type.ordinal() == 0 ? "" : ",").append("\n    \"").append(type).append("\" : ").append(getBranch(type));
+        json.append("\n  },\n  \"getConvertTextRule\" : { \"calls\" : ").append(getConversions())
+            .append(", \"aborts\" : ").append(getConversionAborts())
+            .append(" },\n  \"mayBeDate\" : { \"checks\" : ").append(getDateChecks())
+            .append(", \"hits\" : ").append(getDateHits())
+            .append(", \"hitRate\" : ").append(number(getDateChecks() == 0 ? 0 : (double) getDateHits() / getDateChecks()))
+            .append(" },\n  \"pairs\" : ").append(getPairs())
+            .append(",\n  \"newWords\" : ").append(getNewWords())
+            .append(",\n  \"newRules\" : ").append(getNewRules())
+            .append(",\n  \"latencyNanos\" : { \"mean\" : ").append(number(latency.mean()));
+        double[] percentiles = {0.5, 0.9, 0.99, 0.999};
+        String[] names = {"p50", "p90", "p99", "p999"};
+        for (int i = 0; i < percentiles.length; i++)
+            json.append(", \"").append(names[i]).append("\" : ").append(latency.percentile(percentiles[i]));
+        json.append(", \"max\" : ").append(latency.max()).append(" },\n  \"timeline\" : [");
+        for (int i = 0; i < timeline.size(); i++) {
+            long[] point = timeline.get(i);
+            json.append(i == 0 ? "" : ",").append("\n    { \"elapsedMillis\" : ").append(point[0] / 1000000)
+                .append(", \"passwords\" : ").append(point[1])
+                .append(", \"pairs\" : ").append(point[2])
+                .append(", \"newWords\" : ").append(point[3])
+                .append(", \"newRules\" : ").append(point[4]).append(" }");
+        }
+        json.append(timeline.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public synchronized void register(String name) {
+        // as it.unive.secgroup:type=TransformerMetrics,name=<name>, until close()
+        checkEnabled();
+        if (registered != null)
+            throw new IllegalStateException("already registered as " + registered);
+        try {
+            ObjectName objectName = new ObjectName("it.unive.secgroup:type=TransformerMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registered = objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkEnabled() {
+        if (this == NONE)
+            throw new IllegalStateException("NONE records nothing: use new TransformerMetrics()");
+    }
+
+    @Override
+    public synchronized void close() {
+        // stops the progress lines and unregisters the MBean
+        if (progress != null) {
+            progress.shutdownNow();
+            progress = null;
+        }
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            } finally {
+                registered = null;
+            }
+        }
+    }
+
+    public static class Histogram {
+        // log-linear buckets: values below 2 * SUB_BUCKETS are exact, then every power of two is split
+        // into SUB_BUCKETS buckets. striped by thread, like LongAdder, so that workers do not share lines
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+        private static final int STRIPES = 16;
+
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+            @Override
+            public long applyAsLong(long a, long b) {
+                return Math.max(a, b);
+            }
+        }, 0);
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++)
+                stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        static int bucket(long value) {
+            if (value < 2 * SUB_BUCKETS)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        static long highest(int bucket) {
+            // the largest value that falls in bucket
+            if (bucket < 2 * SUB_BUCKETS)
+                return bucket;
+            int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long top = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public long percentile(double p) {
+            // the value below which a fraction p of the values fall (up to the bucket precision)
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (AtomicLongArray stripe : stripes)
+                for (int b = 0; b < BUCKETS; b++) {
+                    long c = stripe.get(b);
+                    counts[b] += c;
+                    total += c;
+                }
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank)
+                    return Math.min(highest(b), max());
+            }
+            return max();
+        }
+    }
+}
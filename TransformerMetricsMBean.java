@@ -0,0 +1,38 @@
+package it.unive.secgroup;
+
+public interface TransformerMetricsMBean {
+
+    // the JMX view of TransformerMetrics (see TransformerMetrics.register)
+
+    long getPasswords();
+
+    double getThroughput();
+
+    long getAlpha();
+
+    long getNumeric();
+
+    long getSymbol();
+
+    long getEmail();
+
+    long getConversions();
+
+    long getConversionAborts();
+
+    long getDateChecks();
+
+    long getDateHits();
+
+    long getPairs();
+
+    long getNewWords();
+
+    long getNewRules();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyMaxNanos();
+}
@@ -0,0 +1,475 @@
+package it.unive.secgroup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class TransformerPipeline {
+
+    // runs a Transformer as a pipeline of stages, one thread each:
+    //   read (the calling thread: lines are split and copied into batches)
+    //   -> classify (unescape + detectMainComponent)
+    //   -> analyze (the per-type analysis, on several threads: batches are dealt round robin)
+    //   -> aggregate (the pairs are counted by the Transformer, which also writes the debug log)
+    // stages pass batches of BATCH_SIZE pwds through bounded lock-free rings (one producer, one consumer),
+    // the batches go back to the reader once counted: no allocation and one hand-off per batch.
+    // the aggregator takes the batches back in the order they were read, so the counters get the pairs
+    // in input order. every stage times its work and its waits (getStages): the stage that never waits
+    // for its input is the bottleneck (e.g. analyze on alpha-heavy dumps, classify on email-heavy ones)
+
+    private static final int BATCH_SIZE = 4096;
+    // batches queued between two stages
+    private static final int RING_SIZE = 4;
+
+    private final Transformer result;
+    private final int analyzers;
+    private final List<Stage> stages = new ArrayList<>();
+    private final long[] types = new long[Transformer.CharType.values().length];
+    private volatile Throwable failure;
+
+    public TransformerPipeline(Transformer result, int analyzers) {
+        // result is configured as usual (counting mode, debug log...) and gets all the counts
+        if (analyzers < 1)
+            throw new IllegalArgumentException("analyzers must be at least 1: " + analyzers);
+        this.result = result;
+        this.analyzers = analyzers;
+    }
+
+    public void transform(File file) throws IOException {
+        try (final PasswordFileReader reader = new PasswordFileReader(file)) {
+            run(new Source() {
+                @Override
+                public void read(final Feed feed) throws IOException {
+                    reader.read(new PasswordFileReader.LineConsumer() {
+                        @Override
+                        public void accept(char[] chars, int off, int len) {
+                            feed.add(chars, off, len);
+                        }
+                    });
+                }
+            });
+        } catch (PipelineException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void transform(final Iterator<String> pwds) {
+        try {
+            run(new Source() {
+                @Override
+                public void read(Feed feed) {
+                    char[] chars = new char[64];
+                    while (pwds.hasNext()) {
+                        String pwd = pwds.next();
+                        if (pwd == null)
+                            continue;
+                        if (chars.length < pwd.length())
+                            chars = new char[Math.max(pwd.length(), chars.length * 2)];
+                        pwd.getChars(0, pwd.length(), chars, 0);
+                        feed.add(chars, 0, pwd.length());
+                    }
+                }
+            });
+        } catch (PipelineException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public List<Stage> getStages() {
+        // the stages of the last run, in pipeline order
+        return Collections.unmodifiableList(stages);
+    }
+
+    public Map<Transformer.CharType, Long> getTypes() {
+        // pwds of the last run by main component, as classified
+        Map<Transformer.CharType, Long> map = new EnumMap<>(Transformer.CharType.class);
+        for (Transformer.CharType type : Transformer.CharType.values())
+            map.put(type, types[type.ordinal()]);
+        return map;
+    }
+
+    private void run(Source source) throws PipelineException {
+        stages.clear();
+        Arrays.fill(types, 0);
+        failure = null;
+        final Stage read = new Stage("read");
+        final Stage classify = new Stage("classify");
+        final Stage aggregate = new Stage("aggregate");
+        final Ring classifyIn = new Ring(RING_SIZE);
+        // enough batches to fill the rings; the free ring holds them all
+        int batches = RING_SIZE * (2 * analyzers + 1) + analyzers + 3;
+        final Ring free = new Ring(Integer.highestOneBit(batches) << 1);
+        final Ring[] analyzeIn = new Ring[analyzers];
+        final Ring[] analyzeOut = new Ring[analyzers];
+        final Transformer[] workers = new Transformer[analyzers];
+        stages.add(read);
+        stages.add(classify);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(thread(new Runnable() {
+            @Override
+            public void run() {
+                classify(classify, classifyIn, analyzeIn);
+            }
+        }, "classify"));
+        for (int a = 0; a < analyzers; a++) {
+            final Stage analyze = new Stage("analyze-" + a);
+            final Ring in = analyzeIn[a] = new Ring(RING_SIZE);
+            final Ring out = analyzeOut[a] = new Ring(RING_SIZE);
+            final Transformer worker = workers[a] = result.newAnalyzer(analyzers);
+            stages.add(analyze);
+            threads.add(thread(new Runnable() {
+                @Override
+                public void run() {
+                    analyze(analyze, worker, in, out);
+                }
+            }, analyze.name));
+        }
+        stages.add(aggregate);
+        threads.add(thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    aggregate(aggregate, analyzeOut, free);
+                } finally {
+                    result.flushDebug();
+                }
+            }
+        }, "aggregate"));
+        for (Thread thread : threads)
+            thread.start();
+        try {
+            Feed feed = new Feed(read, classifyIn, free, batches);
+            source.read(feed);
+            feed.end();
+        } catch (CancellationException e) {
+            // another stage failed, see below
+        } catch (Throwable e) {
+            fail(e);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null)
+            throw new PipelineException(failure);
+        for (Transformer worker : workers)
+            result.merge(worker);
+    }
+
+    private Thread thread(final Runnable stage, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stage.run();
+                } catch (CancellationException e) {
+                    // another stage failed
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+        }, "pipeline-" + name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void fail(Throwable e) {
+        synchronized (this) {
+            if (failure == null)
+                failure = e;
+        }
+    }
+
+    private void classify(Stage stage, Ring in, Ring[] outs) {
+        long sequence = 0;
+        Batch batch;
+        while ((batch = stage.take(in)) != Batch.END) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch.size; i++) {
+                int length = batch.length[i] = Transformer.unescape(batch.chars, batch.start[i], batch.length[i]);
+                Transformer.CharType type = batch.type[i] = result.classify(batch.chars, batch.start[i], length);
+                types[type.ordinal()]++;
+            }
+            stage.done(batch, start);
+            stage.put(outs[(int) (sequence++ % outs.length)], batch);
+        }
+        for (Ring out : outs)
+            stage.put(out, Batch.END);
+    }
+
+    private void analyze(Stage stage, Transformer worker, Ring in, Ring out) {
+        Batch batch;
+        while ((batch = stage.take(in)) != Batch.END) {
+            long start = System.nanoTime();
+            worker.analyze(batch);
+            stage.done(batch, start);
+            stage.put(out, batch);
+        }
+        stage.put(out, Batch.END);
+    }
+
+    private void aggregate(Stage stage, Ring[] ins, Ring free) {
+        long sequence = 0;
+        Batch batch;
+        // the batches come back in the order the classifier dealt them
+        while ((batch = stage.take(ins[(int) (sequence++ % ins.length)])) != Batch.END) {
+            long start = System.nanoTime();
+            result.aggregate(batch);
+            stage.done(batch, start);
+            batch.clear();
+            stage.put(free, batch);
+        }
+    }
+
+    private interface Source {
+        void read(Feed feed) throws Exception;
+    }
+
+    private class Feed {
+        // the read stage: fills batches and hands them to the classifier
+        private final Stage stage;
+        private final Ring out, free;
+        private final int batches;
+        private int allocated;
+        private Batch batch;
+        private long start;
+
+        Feed(Stage stage, Ring out, Ring free, int batches) {
+            this.stage = stage;
+            this.batches = batches;
+            this.out = out;
+            this.free = free;
+        }
+
+        void add(char[] chars, int off, int len) {
+            if (len == 0)
+                return;
+            if (batch == null) {
+                batch = next();
+                start = System.nanoTime();
+            }
+            batch.add(chars, off, len);
+            if (batch.size == BATCH_SIZE) {
+                stage.done(batch, start);
+                stage.put(out, batch);
+                batch = null;
+            }
+        }
+
+        private Batch next() {
+            if (allocated < batches) {
+                allocated++;
+                return new Batch(BATCH_SIZE);
+            }
+            // all the batches are in flight: wait for the aggregator to give one back
+            long start = System.nanoTime();
+            Batch batch = free.take();
+            stage.blocked += System.nanoTime() - start;
+            return batch;
+        }
+
+        void end() {
+            if (batch != null) {
+                stage.done(batch, start);
+                stage.put(out, batch);
+            }
+            stage.put(out, Batch.END);
+        }
+    }
+
+    public static class Stage {
+        // written by the thread of the stage, read once the run is over
+        private final String name;
+        private long batches, passwords;
+        private long busy, starved, blocked;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private Batch take(Ring in) {
+            long start = System.nanoTime();
+            Batch batch = in.take();
+            starved += System.nanoTime() - start;
+            return batch;
+        }
+
+        private void put(Ring out, Batch batch) {
+            long start = System.nanoTime();
+            out.put(batch);
+            blocked += System.nanoTime() - start;
+        }
+
+        private void done(Batch batch, long start) {
+            busy += System.nanoTime() - start;
+            batches++;
+            passwords += batch.size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getPasswords() {
+            return passwords;
+        }
+
+        public long getBusyNanos() {
+            // time spent working
+            return busy;
+        }
+
+        public long getStarvedNanos() {
+            // time spent waiting for input: ~0 for the bottleneck
+            return starved;
+        }
+
+        public long getBlockedNanos() {
+            // time spent waiting for room downstream
+            return blocked;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d pwds in %d batches, busy %.3fs, starved %.3fs, blocked %.3fs",
+                    name, passwords, batches, busy / 1e9, starved / 1e9, blocked / 1e9);
+        }
+    }
+
+    static final class Batch {
+        // pwd i is chars[start[i], start[i] + length[i]), of main component type[i] (once classified).
+        // the pairs of pwd i are firstPair[i] .. firstPair[i + 1] - 1 (once analyzed): pair p is the
+        // word pairChars[pairStart[p], + wordLength[p]) (-1: no word) followed by its rule ops
+        static final Batch END = new Batch(0);
+
+        int size;
+        char[] chars;
+        private int used;
+        final int[] start, length;
+        final Transformer.CharType[] type;
+        final int[] firstPair;
+        int pairs;
+        int[] pairStart, wordLength, ruleLength;
+        char[] pairChars;
+        private int pairUsed;
+
+        Batch(int capacity) {
+            chars = new char[capacity * 8];
+            start = new int[capacity];
+            length = new int[capacity];
+            type = new Transformer.CharType[capacity];
+            firstPair = new int[capacity + 1];
+            pairStart = new int[capacity * 2];
+            wordLength = new int[capacity * 2];
+            ruleLength = new int[capacity * 2];
+            pairChars = new char[capacity * 16];
+        }
+
+        void add(char[] pwd, int off, int len) {
+            if (chars.length < used + len)
+                chars = Arrays.copyOf(chars, Math.max(used + len, chars.length * 2));
+            System.arraycopy(pwd, off, chars, used, len);
+            start[size] = used;
+            length[size] = len;
+            used += len;
+            size++;
+        }
+
+        void addPair(char[] word, int off, int len, char[] rule, int ruleOff, int ruleLength) {
+            if (pairs == pairStart.length) {
+                pairStart = Arrays.copyOf(pairStart, pairs * 2);
+                wordLength = Arrays.copyOf(wordLength, pairs * 2);
+                this.ruleLength = Arrays.copyOf(this.ruleLength, pairs * 2);
+            }
+            int wordChars = word == null ? 0 : len;
+            if (pairChars.length < pairUsed + wordChars + ruleLength)
+                pairChars = Arrays.copyOf(pairChars, Math.max(pairUsed + wordChars + ruleLength, pairChars.length * 2));
+            pairStart[pairs] = pairUsed;
+            wordLength[pairs] = word == null ? -1 : len;
+            this.ruleLength[pairs] = ruleLength;
+            if (word != null)
+                System.arraycopy(word, off, pairChars, pairUsed, len);
+            System.arraycopy(rule, ruleOff, pairChars, pairUsed + wordChars, ruleLength);
+            pairUsed += wordChars + ruleLength;
+            pairs++;
+        }
+
+        void clear() {
+            size = 0;
+            used = 0;
+            pairs = 0;
+            pairUsed = 0;
+        }
+    }
+
+    private final class Ring {
+        // bounded single-producer single-consumer queue: the producer only moves tail, the consumer
+        // only moves head, so an ordered (lazySet) write of its own index is all the hand-off takes
+        private final Batch[] slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            // a power of two
+            slots = new Batch[capacity];
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return slots.length;
+        }
+
+        void put(Batch batch) {
+            long t = tail.get();
+            for (int spins = 0; t - head.get() == slots.length; spins++)
+                idle(spins);
+            slots[(int) t & mask] = batch;
+            tail.lazySet(t + 1);
+        }
+
+        Batch take() {
+            long h = head.get();
+            for (int spins = 0; h == tail.get(); spins++)
+                idle(spins);
+            int slot = (int) h & mask;
+            Batch batch = slots[slot];
+            slots[slot] = null;
+            head.lazySet(h + 1);
+            return batch;
+        }
+
+        private void idle(int spins) {
+            // spin, then yield, then park: stages wait for batches, not for single pwds
+            if (failure != null)
+                throw new CancellationException();
+            if (spins < 100)
+                return;
+            if (spins < 200)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(spins < 1000 ? 1000 : 50000);
+        }
+    }
+
+    private static class PipelineException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        PipelineException(Throwable cause) {
+            super(cause);
+        }
+    }
+}